@@ -0,0 +1,40 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import java.util.concurrent.CancellationException;
+
+//Flag a running search checks between steps, once cancelled the next check
+//throws CancellationException. NONE is never cancelled.
+
+public final class Cancellation {
+	public static final Cancellation NONE = new Cancellation();
+
+	public void cancel() {
+		if (this != NONE) {
+			isCancelled = true;
+		}
+	}
+
+	public void check() {
+		if (isCancelled) {
+			throw new CancellationException();
+		}
+	}
+
+	public boolean isCancelled() {
+		return isCancelled;
+	}
+
+	private volatile boolean isCancelled;
+}
@@ -12,52 +12,100 @@
 
 package albaum;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Undo record for one fact inserted into or deleted from a trie, with the
+//nodes that changed
+
 public abstract class Change {
 	public enum Type {INSERT, DELETE};
 	
-	public final Node node;
 	public final Fact fact;
+	public final Node[] nodes;
+	public final Trie trie;
 	public final Type type;
 	
-	public Change(final Type ct, final Node n, final Fact t) {
+	public Change(final Type ct, final Trie tr, final Fact t, final Node[] ns) {
 		type = ct;
-		node = n;
+		trie = tr;
 		fact = t;
+		nodes = ns;
 	}
 	
-	public void commit() {
-		if (node.key.compareToIgnoreCase(Key.strip(fact.key)) == 0) {
-			node.trie.commitFact(fact, type);
+	//Each trie gets its share of cs as one batch
+
+	public static void commit(final Collection<Change> cs) {
+		final Map<Trie, List<Change>> ts = new LinkedHashMap<>();
+		
+		for (final Change c: cs) {
+			ts.computeIfAbsent(c.trie, (t) -> new ArrayList<>()).add(c);
+		}
+		
+		for (final Map.Entry<Trie, List<Change>> e: ts.entrySet()) {
+			final List<Fact> fs = new ArrayList<>();
+			final List<Type> cts = new ArrayList<>();
+			
+			for (final Change c: e.getValue()) {
+				fs.add(c.fact);
+				cts.add(c.type);
+			}
+			
+			e.getKey().commitFacts(fs, cts);
 		}
 	}
+	
+	public void commit() {
+		commit(Collections.singletonList(this));
+	}
 
 	public void rollback() {
-		onRollback();
+		for (final Node n: nodes) {
+			onRollback(n);
+		}
 	}
 
-	protected abstract void onRollback();
+	protected abstract void onRollback(Node n);
 
 	public static class Insert extends Change {
-		public Insert(final Node n, final Fact t) {
-			super(Type.INSERT, n, t);
+		public Insert(final Trie tr, final Fact t, final Node[] ns) {
+			super(Type.INSERT, tr, t, ns);
 		}
 		
+		//Also drops the fact from the token index and gives up its id once no
+		//node holds it
+
+		@Override
+		public void rollback() {
+			super.rollback();
+
+			if (fact.nodes.isEmpty()) {
+				if (trie.tokens != null) {
+					trie.tokens.delete(fact);
+				}
+
+				trie.registry.release(fact);
+			}
+		}
+
 		@Override
-		protected void onRollback() {
-			fact.nodes.remove(node);
-			node.facts.remove(fact);			
+		protected void onRollback(final Node n) {
+			n.deleteFact(fact);
 		}
 	}
 
 	public static class Delete extends Change {
-		public Delete(final Node n, final Fact t) {
-			super(Type.DELETE, n, t);
+		public Delete(final Trie tr, final Fact t, final Node[] ns) {
+			super(Type.DELETE, tr, t, ns);
 		}
 
 		@Override
-		protected void onRollback() {
-			fact.nodes.add(node);
-			node.facts.add(fact);			
+		protected void onRollback(final Node n) {
+			n.insertFact(fact);
 		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,211 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+//Children keyed on char. Small tables are scanned inline, larger ones get an
+//open addressed index on top of the sorted arrays. Tables are immutable and
+//replaced on every put, which publishes them safely to readers that don't
+//lock; writers are serialized on the table. EMPTY is shared by all edge
+//views and can't be changed.
+
+public final class ChildTable {
+	public static final ChildTable EMPTY = new ChildTable(true);
+	public static final int INLINE_SIZE = 8;
+
+	public ChildTable() {
+		this(false);
+	}
+
+	public void clear() {
+		checkWritable();
+
+		synchronized (this) {
+			table = Table.EMPTY;
+		}
+	}
+
+	public boolean containsKey(final char c) {
+		return get(c) != null;
+	}
+
+	public Node get(final char c) {
+		return table.get(c);
+	}
+
+	public void put(final char c, final Node n) {
+		checkWritable();
+
+		synchronized (this) {
+			final Table t = table;
+			int i = Arrays.binarySearch(t.keys, c);
+
+			if (i >= 0) {
+				final Node[] ns = t.nodes.clone();
+				ns[i] = n;
+				table = new Table(t.keys, ns);
+			} else {
+				i = -i - 1;
+				final int s = t.keys.length;
+				final char[] ks = new char[s + 1];
+				final Node[] ns = new Node[s + 1];
+				System.arraycopy(t.keys, 0, ks, 0, i);
+				System.arraycopy(t.nodes, 0, ns, 0, i);
+				ks[i] = c;
+				ns[i] = n;
+				System.arraycopy(t.keys, i, ks, i + 1, s - i);
+				System.arraycopy(t.nodes, i, ns, i + 1, s - i);
+				table = new Table(ks, ns);
+			}
+		}
+	}
+
+	public int size() {
+		return table.keys.length;
+	}
+
+	//Children in key order
+
+	public List<Node> values() {
+		return Collections.unmodifiableList(Arrays.asList(table.nodes));
+	}
+
+	private static class Table {
+		public static final Table EMPTY = new Table(new char[0], new Node[0]);
+
+		public final char[] hashKeys;
+		public final Node[] hashNodes;
+		public final char[] keys;
+		public final Node[] nodes;
+
+		public Table(final char[] ks, final Node[] ns) {
+			keys = ks;
+			nodes = ns;
+
+			if (ks.length <= INLINE_SIZE) {
+				hashKeys = null;
+				hashNodes = null;
+			} else {
+				final int cap = Integer.highestOneBit(ks.length * 2) << 1;
+				hashKeys = new char[cap];
+				hashNodes = new Node[cap];
+
+				for (int i = 0; i < ks.length; i++) {
+					int j = hash(ks[i]) & (cap - 1);
+
+					while (hashNodes[j] != null) {
+						j = (j + 1) & (cap - 1);
+					}
+
+					hashKeys[j] = ks[i];
+					hashNodes[j] = ns[i];
+				}
+			}
+		}
+
+		public Node get(final char c) {
+			if (hashNodes == null) {
+				for (int i = 0; i < keys.length; i++) {
+					if (keys[i] == c) {
+						return nodes[i];
+					}
+				}
+
+				return null;
+			}
+
+			final int mask = hashNodes.length - 1;
+			int j = hash(c) & mask;
+			Node n;
+
+			while ((n = hashNodes[j]) != null) {
+				if (hashKeys[j] == c) {
+					return n;
+				}
+
+				j = (j + 1) & mask;
+			}
+
+			return null;
+		}
+
+		private static int hash(final char c) {
+			return (c * 0x9e3779b1) >>> 16;
+		}
+	}
+
+	private final boolean isReadOnly;
+	private volatile Table table = Table.EMPTY;
+
+	private ChildTable(final boolean ro) {
+		isReadOnly = ro;
+	}
+
+	private void checkWritable() {
+		if (isReadOnly) {
+			throw new UnsupportedOperationException("Read only child table");
+		}
+	}
+
+	public static class Tests {
+		@Test
+		public void testUpgrade() {
+			final ChildTable t = new ChildTable();
+			final String cs = "zyxwvutsrqponmlkjihgfedcba0123456789";
+			final Node[] ns = new Node[cs.length()];
+
+			for (int i = 0; i < cs.length(); i++) {
+				ns[i] = new Node(null, null, String.valueOf(cs.charAt(i)));
+				t.put(cs.charAt(i), ns[i]);
+
+				for (int j = 0; j <= i; j++) {
+					assertEquals(ns[j], t.get(cs.charAt(j)));
+				}
+			}
+
+			assertNull(t.get('#'));
+			assertEquals(cs.length(), t.size());
+
+			char prev = 0;
+
+			for (final Node n: t.values()) {
+				assertEquals(true, n.key.charAt(0) > prev);
+				prev = n.key.charAt(0);
+			}
+
+			final Node n = new Node(null, null, "a");
+			t.put('a', n);
+			assertEquals(n, t.get('a'));
+			assertEquals(cs.length(), t.size());
+		}
+
+		@Test
+		public void testEmpty() {
+			try {
+				ChildTable.EMPTY.put('a', new Node(null, null, "a"));
+				fail("expected read only table");
+			} catch (final UnsupportedOperationException e) {
+				assertEquals(0, ChildTable.EMPTY.size());
+			}
+		}
+	}
+}
@@ -15,6 +15,8 @@ package albaum;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
 
@@ -25,11 +27,15 @@ public class Context {
 		changes.add(c);
 	}
 	
+	//Starts recording changes separately from this context and any other
+	//transaction
+
+	public Transaction begin() {
+		return new Transaction(this);
+	}
+	
 	public void commit() {
-		for (final Change c: changes) {
-			c.commit();
-		}
-		changes.clear();
+		Change.commit(drain());
 	}
 	
 	public String format(final Instant i) {
@@ -61,10 +67,23 @@ public class Context {
 	}
 
 	public void rollback() {
-		for (final Change c: changes) {
+		for (final Change c: drain()) {
 			c.rollback();
 		}
-		changes.clear();
+	}
+	
+	//Takes the recorded changes, changes added meanwhile stay for the next
+	//commit or rollback
+	
+	private List<Change> drain() {
+		final List<Change> res = new ArrayList<>();
+		Change c;
+		
+		while ((c = changes.poll()) != null) {
+			res.add(c);
+		}
+		
+		return res;
 	}
 	
 	private final DateTimeFormatter timeFormatJS = timeFormat = DateTimeFormatter
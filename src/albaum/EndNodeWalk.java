@@ -0,0 +1,234 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.junit.Test;
+
+//The walk behind Node.findEndNodes, kept resumable. The walk follows the
+//key down the trie and restarts at the next token after each mismatch.
+//Only its last steps depend on what comes after the key, so the branches
+//that ran into the end of the key are kept. A key that extends this one
+//picks up from there instead of walking again from the root. The nodes
+//passed stay valid for as long as the trie doesn't change.
+
+public class EndNodeWalk {
+	public final String key;
+	public final int minMatch;
+	public final Node root;
+
+	public EndNodeWalk(final Node r, final int mm) {
+		this(r, mm, "", new TreeSet<>(), new ArrayList<>());
+		branches.add(new Branch(r, 0));
+	}
+
+	//End nodes for key
+
+	public Set<Node> nodes() {
+		final Set<Node> res = new ConcurrentSkipListSet<>(passed);
+
+		for (final Branch b: branches) {
+			if (b.n.level >= minMatch) {
+				res.add(b.n);
+			}
+		}
+
+		return res;
+	}
+
+	//Walk for k, which has to start with key. This walk stays as it is, so
+	//it can be extended again if c is cancelled midway.
+
+	public EndNodeWalk extend(final String k, final Cancellation c) {
+		if (!k.startsWith(key)) {
+			throw new IllegalArgumentException(k + " doesn't extend " + key);
+		}
+
+		final EndNodeWalk res = new EndNodeWalk(root, minMatch, k, new TreeSet<>(passed),
+			new ArrayList<>());
+		final List<Branch> todo = new ArrayList<>();
+
+		for (final Branch b: branches) {
+			todo.add(b.clone());
+		}
+
+		while (!todo.isEmpty()) {
+			c.check();
+			final Branch b = todo.remove(todo.size() - 1);
+			res.walk(b, todo);
+			res.branches.add(b);
+		}
+
+		return res;
+	}
+
+	private EndNodeWalk(final Node r, final int mm, final String k, final Set<Node> ps,
+			final List<Branch> bs) {
+		root = r;
+		minMatch = mm;
+		key = k;
+		passed = ps;
+		branches = bs;
+	}
+
+	private static class Branch implements Cloneable {
+		public static final int MATCH = 0;
+		public static final int SKIP_TOKEN = 1;
+		public static final int SKIP_SPLITS = 2;
+
+		public int i;
+		public Node n;
+		public int state = MATCH;
+		public int start;
+
+		public Branch(final Node r, final int s) {
+			n = r;
+			start = i = s;
+		}
+
+		@Override
+		public Branch clone() {
+			try {
+				return (Branch)super.clone();
+			} catch (final CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	//Moves b along key until it needs what comes after, new branches go to
+	//todo
+
+	private void walk(final Branch b, final List<Branch> todo) {
+		final int len = key.length();
+
+		while (b.i < len) {
+			switch (b.state) {
+			case Branch.MATCH:
+				final char c = key.charAt(b.i);
+
+				if (b.n.hasChild(c)) {
+					b.n = b.n.getChild(c);
+					b.i++;
+					break;
+				}
+
+				if (b.n.level >= minMatch) {
+					passed.add(b.n);
+				}
+
+				while (b.i > b.start && !Key.isSplit(key.charAt(b.i))) {
+					b.i--;
+					b.n = b.n.up();
+				}
+
+				b.i++;
+
+				if (b.n != root) {
+					todo.add(new Branch(root, b.i));
+				}
+
+				b.state = Branch.SKIP_TOKEN;
+				break;
+			case Branch.SKIP_TOKEN:
+				if (Key.isSplit(key.charAt(b.i))) {
+					b.state = Branch.SKIP_SPLITS;
+				} else {
+					b.i++;
+				}
+
+				break;
+			default:
+				if (Key.isSplit(key.charAt(b.i))) {
+					b.i++;
+				} else {
+					b.start = b.i;
+					todo.add(new Branch(root, b.i));
+					b.state = Branch.MATCH;
+				}
+			}
+		}
+	}
+
+	private final List<Branch> branches;
+	private final Set<Node> passed;
+
+	public static class Tests {
+		@Test
+		public void testExtend() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Random r = new Random(42);
+			final String cs = "abcd -";
+
+			for (int i = 0; i < 300; i++) {
+				t.insertAll(new Fact(word(r, cs, 3 + r.nextInt(12))), cx);
+			}
+
+			cx.commit();
+
+			for (int i = 0; i < 200; i++) {
+				final String k = word(r, cs, 1 + r.nextInt(10));
+				EndNodeWalk w = new EndNodeWalk(t.root, 2);
+
+				for (int j = 0; j <= k.length(); j++) {
+					w = w.extend(k.substring(0, j), Cancellation.NONE);
+					assertEquals(t.root.findEndNodes(k.substring(0, j), 2), w.nodes());
+				}
+			}
+		}
+
+		@Test
+		public void testCancel() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			t.insertAll(new Fact("abc def"), cx);
+			cx.commit();
+
+			final EndNodeWalk w = new EndNodeWalk(t.root, 2).extend("abc", Cancellation.NONE);
+			final Cancellation c = new Cancellation();
+			c.cancel();
+
+			try {
+				w.extend("abc d", c);
+				fail("expected cancellation");
+			} catch (final CancellationException e) {
+				assertEquals("abc", w.key);
+				assertEquals(t.root.findEndNodes("abc", 2), w.nodes());
+			}
+
+			assertEquals(t.root.findEndNodes("abc d", 2),
+				w.extend("abc d", Cancellation.NONE).nodes());
+		}
+
+		private static String word(final Random r, final String cs, final int len) {
+			final StringBuilder res = new StringBuilder();
+
+			for (int i = 0; i < len; i++) {
+				res.append(cs.charAt(r.nextInt(cs.length())));
+			}
+
+			return res.toString();
+		}
+	}
+}
@@ -17,7 +17,7 @@ import static org.junit.Assert.*;
 import java.time.Instant;
 import java.time.temporal.ChronoUnit;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.json.JsonObject;
 import javax.json.JsonValue;
@@ -31,7 +31,7 @@ public class Fact implements Comparable<Fact>, HasKey {
 	
 	public final Instant createdAt;
 	public final String key;
-	public final Set<Node> nodes = new ConcurrentSkipListSet<>();
+	public final Set<Node> nodes = ConcurrentHashMap.newKeySet();
 	public final Fact previousVersion;
 	public final Fact prototype;
 	public final int version;
@@ -44,6 +44,14 @@ public class Fact implements Comparable<Fact>, HasKey {
 		version = 1;
 	}
 
+	public Fact(final String k, final Instant ca, final Fact pv, final int v) {
+		key = k;
+		createdAt = ca;
+		prototype = null;
+		previousVersion = pv;
+		version = v;
+	}
+
 	public Fact(final String k) {
 		this(k, now());
 	}
@@ -0,0 +1,229 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+import org.junit.Test;
+
+//Hands out dense int ids to facts, facts that compare equal share an id.
+//Nodes store ids instead of facts. Released ids are handed out again once
+//no query session holds them anymore.
+
+public class FactRegistry {
+	//Like id, but an equal fact that isn't indexed anywhere anymore hands
+	//its id over to f, so a deleted fact doesn't stand in for a new one
+
+	public int bind(final Fact f) {
+		final int res = id(f);
+
+		if (facts[res] != f && facts[res].nodes.isEmpty()) {
+			synchronized (this) {
+				if (facts[res].nodes.isEmpty()) {
+					facts[res] = f;
+				}
+			}
+		}
+
+		return res;
+	}
+
+	public void clear() {
+		synchronized (this) {
+			ids.clear();
+			facts = new Fact[facts.length];
+			free.clear();
+			size = 0;
+		}
+	}
+
+	public int find(final Fact f) {
+		final Integer res = ids.get(f);
+		return (res == null) ? -1 : res;
+	}
+
+	public Fact get(final int id) {
+		return facts[id];
+	}
+
+	public Set<Fact> get(final BitSet ids, final Set<Fact> res) {
+		final Fact[] fs = facts;
+
+		for (int i = ids.nextSetBit(0); i >= 0; i = ids.nextSetBit(i + 1)) {
+			res.add(fs[i]);
+		}
+
+		return res;
+	}
+
+	public int id(final Fact f) {
+		final Integer res = ids.get(f);
+
+		if (res != null) {
+			return res;
+		}
+
+		synchronized (this) {
+			final Integer prev = ids.get(f);
+
+			if (prev != null) {
+				return prev;
+			}
+
+			int id = free.nextSetBit(0);
+
+			while (id >= 0 && isHeld(id)) {
+				id = free.nextSetBit(id + 1);
+			}
+
+			if (id >= 0) {
+				free.clear(id);
+			} else {
+				if (size == facts.length) {
+					facts = Arrays.copyOf(facts, size * 2);
+				}
+
+				id = size++;
+			}
+
+			facts[id] = f;
+			ids.put(f, id);
+			return id;
+		}
+	}
+
+	//Lets q's ids keep their meaning, released ids q still holds aren't
+	//handed out again until q moved past them
+
+	public void register(final Query q) {
+		synchronized (this) {
+			sessions.add(q);
+		}
+	}
+
+	//Gives up f's id once f is on no node anymore. The slot keeps f until
+	//the id is handed out again, so sessions can still look it up.
+
+	public void release(final Fact f) {
+		synchronized (this) {
+			final Integer id = ids.get(f);
+
+			if (id != null && facts[id] == f && f.nodes.isEmpty()) {
+				ids.remove(f);
+				free.set(id);
+			}
+		}
+	}
+
+	public int size() {
+		synchronized (this) {
+			return size;
+		}
+	}
+
+	private boolean isHeld(final int id) {
+		for (final Query q: sessions) {
+			if (q.holds(id)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private volatile Fact[] facts = new Fact[64];
+	private final BitSet free = new BitSet();
+	private final ConcurrentSkipListMap<Fact, Integer> ids = new ConcurrentSkipListMap<>();
+	private final Set<Query> sessions = Collections.newSetFromMap(new WeakHashMap<>());
+	private int size;
+
+	public static class Tests {
+		@Test
+		public void testId() {
+			final FactRegistry r = new FactRegistry();
+			final Fact abc = new Fact("abc");
+
+			for (int i = 0; i < 100; i++) {
+				assertEquals(i, r.id(new Fact("def " + i)));
+			}
+
+			final int id = r.id(abc);
+			assertEquals(id, r.id(abc.clone()));
+			assertSame(abc, r.get(id));
+			assertEquals(-1, r.find(new Fact("ghi")));
+		}
+
+		@Test
+		public void testBind() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Fact abc = new Fact("abc", Albaum.nullTime);
+			t.insertAll(abc, cx);
+			t.deleteAll(abc, cx);
+			cx.commit();
+
+			final Fact abc2 = new Fact("Abc", Albaum.nullTime);
+			t.insertAll(abc2, cx);
+			cx.commit();
+			final Set<Fact> fs = t.findAll("abc", 1);
+			assertEquals(1, fs.size());
+			assertSame(abc2, fs.iterator().next());
+
+			t.deleteAll(fs.iterator().next(), cx);
+			cx.commit();
+			assertTrue(t.findAll("abc", 1).isEmpty());
+		}
+
+		@Test
+		public void testRelease() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Fact abc = new Fact("abc", Albaum.nullTime);
+			t.insertAll(abc, cx);
+			cx.commit();
+			final int id = t.registry.find(abc);
+
+			final Query q = new Query(t, 1);
+			q.update("abc");
+			t.deleteAll(abc, cx);
+			cx.commit();
+			assertEquals(-1, t.registry.find(abc));
+
+			final Fact def = new Fact("def", Albaum.nullTime);
+			t.insertAll(def, cx);
+			cx.commit();
+			assertNotEquals(id, t.registry.find(def));
+
+			assertTrue(q.update("abc"));
+			assertTrue(q.removed().contains(abc));
+			q.update("def");
+
+			final Fact ghi = new Fact("ghi", Albaum.nullTime);
+			t.insertAll(ghi, cx);
+			cx.commit();
+			assertEquals(id, t.registry.find(ghi));
+			assertSame(ghi, t.registry.get(id));
+			assertEquals(2, t.registry.size());
+		}
+	}
+}
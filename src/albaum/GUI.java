@@ -13,18 +13,21 @@
 package albaum;
 
 import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.swt.SWT;
 import org.eclipse.swt.custom.TreeEditor;
@@ -57,8 +60,8 @@ public class GUI {
 		void run();
 	}
 
-	public static void run(final Context c) {
-		final GUI gui = new GUI(c);
+	public static void run(final Context c, final Trie.Mode m) {
+		final GUI gui = new GUI(c, m);
 		gui.shell.open();
 		
 	    gui.updateFont();
@@ -78,15 +81,18 @@ public class GUI {
 		gui.display.dispose();
 	}
 
-	public GUI(final Context cx) {
+	public GUI(final Context cx, final Trie.Mode m) {
 		context = cx;
 		
-		mainTrie = new Trie(
-			new Log(cx, FileSystems.getDefault().getPath("commit.log")));
+		//Only compacted segments are compressed, appends stay plain
+		final Log.Config lc = new Log.Config();
+		lc.compress = true;
+		log = new Log(cx, FileSystems.getDefault().getPath("commit.log"), lc);
+		mainTrie = new Trie(log, m);
 		
 		context.load(mainTrie);
 		
-		tempTrie = new Trie(null);
+		query = new Query(mainTrie, Reader.MIN_INPUT_LENGTH);
 				
 	    display = new Display();
 	    shell = new Shell(display);
@@ -98,6 +104,14 @@ public class GUI {
             flashTimer.cancel();
             searchTimer.cancel();
             exec.shutdown();
+            
+            try {
+            	exec.awaitTermination(EXIT_TIMEOUT, TimeUnit.SECONDS);
+            } catch (final InterruptedException ex) {
+            	Thread.currentThread().interrupt();
+            }
+            
+            log.close();
         });	    
 	    
 	    mainPanel = new Composite(shell, SWT.NONE);
@@ -132,6 +146,7 @@ public class GUI {
 	    updateCaption();
 	}
 								
+	private static final int EXIT_TIMEOUT = 5;
 	private static final int FLASH_INTERVAL = 20;
 	private static final int READER_FONT_DELTA = 2;
 	private static final int READER_ROWS = 3;
@@ -142,26 +157,29 @@ public class GUI {
 	private final ExecutorService exec = 
 		Executors.newFixedThreadPool(
 			Runtime.getRuntime().availableProcessors() + 2);
-	private final Map<Fact, TreeItem> factItems = new ConcurrentSkipListMap<>();
 	private final KeyText flash;
     private final Timer flashTimer = new Timer();
     private String font = "DejaVu Sans Mono";
     private int fontSize = 10;
 	private boolean isExiting;
+	private final Log log;
 	private final Composite mainPanel;
     private final Trie mainTrie;
     private Menu menuBar;
  	private final Set<String> pinnedKeys = new HashSet<>();
-    private String prevInput = "";
+    private final Query query;
     private final Reader reader;
     private final Composite readerPanel;
+    private final Set<Fact> results = new ConcurrentSkipListSet<>();
+    private Cancellation searchCancellation = Cancellation.NONE;
     private final Timer searchTimer = new Timer();
     private TimerTask searchTask;
     private final Shell shell;
+    private volatile String shownKey = "";
     private final Button storeButton;
     private Callback storeCallback = this::storeInput;
-    private final Trie tempTrie;
     private final Tree tree;
+    private ResultView view = new ResultView(new ArrayList<>(), "");
 	
 	private Menu createEditMenu() {
 		final MenuItem mi = new MenuItem(menuBar, SWT.CASCADE);
@@ -183,30 +201,24 @@ public class GUI {
 		});
 		
 		SWTUtils.addMenuItem(m, "&Delete Selection", SWT.CTRL + 'D', () -> {
-			final Set<TreeItem> ps = new HashSet<>();
+			final List<Fact> fs = new ArrayList<>();
 			
 			for (final TreeItem si: tree.getSelection()) {
-				if (si.getParentItem() != null) {
-					ps.add(si.getParentItem());
+				if (!isGroup(si)) {
+					fs.add((Fact)itemData(si));
 				}
-				
-				deleteResult(si);
 			}			
 			
-			for (final TreeItem pi: ps) {
-				if (pi.getItemCount() == 0) {
-					pi.dispose();
-				}
-			}
+			deleteResults(fs);
 		});
 
 		SWTUtils.addMenuItem(m, "&Pin Selection", SWT.CTRL + 'P', () -> {
 			final Set<TreeItem> hs = new HashSet<>();
 
 			for (final TreeItem ti: tree.getSelection()) {
-				if (ti.getItemCount() == 0) {
+				if (!isGroup(ti)) {
 					ti.setChecked(true);
-					pinnedKeys.add(((Fact)ti.getData()).key);
+					pinnedKeys.add(itemData(ti).key());
 					
 					final TreeItem pi = ti.getParentItem();
 					if (pi != null) {
@@ -222,9 +234,9 @@ public class GUI {
 			final Set<TreeItem> hs = new HashSet<>();
 
 			for (final TreeItem ti: tree.getSelection()) {
-				if (ti.getItemCount() == 0) {
+				if (!isGroup(ti)) {
 					ti.setChecked(false);
-					pinnedKeys.remove(((Fact)ti.getData()).key);
+					pinnedKeys.remove(itemData(ti).key());
 
 					final TreeItem pi = ti.getParentItem();
 					if (pi != null) {
@@ -267,7 +279,7 @@ public class GUI {
 	}
 	
 	private Reader createReader(final Composite p) {
-	    final Reader r = new Reader(tempTrie, shell, SWT.None);
+	    final Reader r = new Reader(mainTrie, shell, SWT.None);
 	    r.setParent(p);
 	    
 	    r.addListener(SWT.KeyDown, (e) -> {
@@ -277,18 +289,34 @@ public class GUI {
         	if (searchTask != null) {
         		searchTask.cancel();
         	}
+        	
+        	searchCancellation.cancel();
+        	final Cancellation c = new Cancellation();
+        	searchCancellation = c;
         		        	
         	searchTask = new TimerTask() {
         		@Override
         		public void run() {
         			final String i = reader.currentInput();
-        			if (i.compareToIgnoreCase(prevInput) != 0) {
-        				search(i);
-        				final Stream<Node> ns = sortResults();
-        				display.asyncExec(() -> {
-        					updateResults(ns);
-        					reader.checkPerfectMatch(i);
-        				});
+        			
+        			//Compared to what is shown rather than query.key(), a
+        			//search cancelled after the query moved on still needs
+        			//its results displayed
+        			
+        			if (i.compareToIgnoreCase(shownKey) != 0) {
+        				try {
+        					search(i, c);
+        					final ResultView v = sortResults(c);
+        					display.asyncExec(() -> {
+        						if (!c.isCancelled()) {
+        							updateResults(v);
+        							shownKey = i;
+        							reader.checkPerfectMatch(i);
+        						}
+        					});
+        				} catch (final CancellationException e) {
+        					//A newer search is on its way
+        				}
         			}
         		}
 	    	};
@@ -341,7 +369,7 @@ public class GUI {
 	
 	private Tree createTree() {
 		final Tree t = new Tree(shell, 
-			SWT.BORDER | SWT.CHECK | SWT.MULTI | SWT.V_SCROLL);
+			SWT.BORDER | SWT.CHECK | SWT.MULTI | SWT.V_SCROLL | SWT.VIRTUAL);
 		
 		t.setParent(mainPanel);
 		t.setHeaderVisible(true);
@@ -369,54 +397,55 @@ public class GUI {
 		col.setText("Text");
 	    col.setWidth(SWT.MAX);
 
+	    //Items are filled in from the current view as they come into sight
+	    
+	    t.addListener(SWT.SetData, (e) -> {
+	    	final TreeItem i = (TreeItem)e.item;
+	    	final TreeItem pi = i.getParentItem();
+	    	
+	    	if (pi == null) {
+	    		final ResultView.Row r = view.rows.get(t.indexOf(i));
+	    		
+	    		if (r.fact == null) {
+	    			initItem(i, r.group);
+	    			i.setItemCount(r.children.size());
+	    			i.setExpanded(true);
+	    		} else {
+	    			initItem(i, r.fact);
+	    		}
+	    	} else {
+	    		initItem(i, view.rows.get(t.indexOf(pi)).children.get(pi.indexOf(i)));
+	    	}
+	    });
+	    
 	    t.addListener(SWT.Selection, (e) -> {
 	    	if (e.detail == SWT.CHECK) {
 	    		final TreeItem i = (TreeItem)e.item;
-	    		final String k = ((HasKey)i.getData()).key();
-	
-	    		final Set<TreeItem> pinnedHeaders = new HashSet<>();
-	    		final Set<TreeItem> unpinnedHeaders = new HashSet<>();
-	
+	    		final boolean isChecked = i.getChecked();
 	    		final TreeItem pi = i.getParentItem();
-	    	  
-	    		if (i.getChecked()) {
-	    			pinnedKeys.add(k);
-	    			if (pi != null) {
-	    				pinnedHeaders.add(pi);
-	    			}
+	    		
+	    		if (isChecked) {
+	    			pinnedKeys.add(itemData(i).key());
 	    		} else {
-	    			pinnedKeys.remove(k);
-	    			if (pi != null) {
-	    				unpinnedHeaders.add(pi);
-	    			}
+	    			pinnedKeys.remove(itemData(i).key());
 	    		}
-	    	  
-	    		for (final TreeItem ii: i.getItems()) {
-	    			final String kk = ((HasKey)ii.getData()).key();
-	    			final TreeItem pii = ii.getParentItem();
-	
-	    			if (i.getChecked()) {
-	    				ii.setChecked(true);
-	    				pinnedKeys.add(kk);
-	
-	    				if (pii != null) {
-	    					pinnedHeaders.add(pii);
-	    				}
-	    			} else {
-	    				ii.setChecked(false);
-	    				pinnedKeys.remove(kk);
-	    				if (pii != null) {
-	    					unpinnedHeaders.add(pii);
+	    		
+	    		if (pi == null) {
+	    			for (final Fact f: view.rows.get(t.indexOf(i)).children) {
+	    				if (isChecked) {
+	    					pinnedKeys.add(f.key);
+	    				} else {
+	    					pinnedKeys.remove(f.key);
 	    				}
 	    			}
-	    		}
-	    	  
-	    		if (!pinnedHeaders.isEmpty()) {
-	    			pinTreeHeaders(pinnedHeaders);
-	    		}
-	
-	    		if (!unpinnedHeaders.isEmpty()) {
-	    			unpinTreeHeaders(unpinnedHeaders);
+	    			
+	    			for (final TreeItem ii: i.getItems()) {
+	    				ii.setChecked(isChecked);
+	    			}
+	    		} else if (isChecked) {
+	    			pinTreeHeaders(Arrays.asList(pi));
+	    		} else {
+	    			unpinTreeHeaders(Arrays.asList(pi));
 	    		}
 	    	}
 	    });
@@ -456,29 +485,31 @@ public class GUI {
 		return m;
 	}
 	
-	private void deleteResult(final TreeItem ti) {
-		if (ti.getItemCount() == 0) {
-			final Fact f = (Fact)ti.getData();
-			ti.dispose();
-
-			exec.submit(() -> {
-				mainTrie.deleteAll(f.prototype, context);
-				tempTrie.deleteAll(f, context);
-				context.commit();
-			});
-		}
+	private void deleteResults(final List<Fact> fs) {
+		exec.submit(() -> {
+			final Transaction tx = context.begin();
+			
+			for (final Fact f: fs) {
+				mainTrie.deleteAll(f, tx);
+				results.remove(f);
+			}
+			
+			tx.commit();
+			final ResultView v = sortResults();
+			display.asyncExec(() -> updateResults(v));
+		});
 	}
 
 	private void editResult(final TreeEditor te) {
 		if (tree.getSelectionCount() == 1) {
 			final TreeItem i = tree.getSelection()[0];
 			
-			if (i.getItemCount() == 0) {
+			if (!isGroup(i)) {
 				final Reader r = new Reader(mainTrie, shell, SWT.None);
 				setFont(r, READER_FONT_DELTA);
 				te.minimumHeight =  getReaderSize(r);				
 				r.setParent(tree);
-				final Fact t = (Fact)i.getData();
+				final Fact t = (Fact)itemData(i);
 				r.setText(t.key);
 				r.selectAll();
 				r.setFocus();
@@ -526,66 +557,45 @@ public class GUI {
 		}
 	}
 
-	private void initItem(final TreeItem i, final Node n) {
-		int tc = 0;
-		Fact f = null;
-		
-		for (Fact tt: n.facts) {
-			if (!factItems.containsKey(tt)) {
-				f = tt;
-				tc++;
-			}
-		}
-
-		if (tc == 1) {
-			initItem(i, f);
-		} else {
-			i.setText(new String[]{context.format(n.insertedAt), 
-				String.valueOf(n.score()), "", n.key});
-			i.setData(n);
-			if (pinnedKeys.contains(n.key)) {
-				i.setChecked(true);
-			}
-				
-			for (final Fact ff: n.facts) {
-				if (!factItems.containsKey(ff)) {
-					newItem(i, ff);
-				}
-			}
-		}
+	private void initItem(final TreeItem i, final ResultView.Group g) {
+		final Node n = g.node;
+		i.setText(new String[]{context.format(n.insertedAt), 
+			String.valueOf(g.score()), "", n.key});
+		i.setData(n);
+		i.setChecked(pinnedKeys.contains(n.key));
 	}
 
 	private void initItem(final TreeItem i, final Fact f) {
 		i.setText(new String[]{context.format(f.createdAt), 
 			"", String.valueOf(f.version), f.key});
 		i.setData(f);
-		
-		if (pinnedKeys.contains(f.key)) {
-			i.setChecked(true);
-		}
-		
-		factItems.put(f, i);
+		i.setChecked(pinnedKeys.contains(f.key));
 	}
-
-	private TreeItem newItem(final Tree p, final Node n) {
-		final TreeItem i = new TreeItem(p, SWT.NONE);
-		initItem(i, n);
-		return i;
+	
+	private boolean isGroup(final TreeItem ti) {
+		return ti.getParentItem() == null && view.rows.get(tree.indexOf(ti)).fact == null;
 	}
 	
-	private TreeItem newItem(final TreeItem p, final Fact t) {
-		final TreeItem i = new TreeItem(p, SWT.NONE);
-		initItem(i, t);
-		p.setExpanded(true);					
-		return i;
+	//Fact or node behind an item, taken from the view since virtual items
+	//may not have been filled in yet
+	
+	private HasKey itemData(final TreeItem ti) {
+		final TreeItem pi = ti.getParentItem();
+		
+		return (pi == null) 
+			? view.rows.get(tree.indexOf(ti)).data() 
+			: view.rows.get(tree.indexOf(pi)).children.get(pi.indexOf(ti));
 	}
 
 	private void pinTreeHeaders(final Collection<TreeItem> is) {
 		for (final TreeItem ti: is) {
-			if (ti.getItemCount() > 0) {
+			final ResultView.Row r = view.rows.get(tree.indexOf(ti));
+			
+			if (!r.children.isEmpty()) {
 				boolean allPinned = true;
-				for (final TreeItem ci: ti.getItems()) {
-					if (!ci.getChecked()) {
+				
+				for (final Fact f: r.children) {
+					if (!pinnedKeys.contains(f.key)) {
 						allPinned = false;
 						break;
 					}
@@ -593,34 +603,37 @@ public class GUI {
 				
 				if (allPinned) {
 					ti.setChecked(true);
-					pinnedKeys.add(((HasKey)ti.getData()).key());
+					pinnedKeys.add(r.data().key());
 				}
 			}
 		}
 	}
 	
-	private void search(final String key) {		
-		Set<Fact> newFacts;
-		
-		if (key.length() >= Reader.MIN_INPUT_LENGTH) {
-			newFacts = mainTrie.findAll(key, Reader.MIN_INPUT_LENGTH);
-		} else {
-			newFacts = new HashSet<>();
-		}
+	//Selects the item showing f, if any
+	
+	private void select(final Fact f) {
+		final int[] p = view.indexOf(f);
 		
-		factItems.keySet().parallelStream().forEach((f) -> {
-			if (!newFacts.contains(f) && !pinnedKeys.contains(f.key)) {
-				tempTrie.deleteAll(f, context);
+		if (p != null) {
+			TreeItem ti = tree.getItem(p[0]);
+			
+			if (p[1] >= 0) {
+				ti.setItemCount(view.rows.get(p[0]).children.size());
+				ti = ti.getItem(p[1]);
 			}
-		});
-		
-		newFacts.parallelStream().forEach((f) -> {
-			tempTrie.insertAll(f.clone(), context);
-		});
-		
-		context.commit();
-		
-		prevInput = key;
+			
+			tree.select(ti);
+			tree.showItem(ti);
+		}
+	}
+	
+	//Only facts that entered or left the results since the last search are
+	//added or removed, can only be cancelled before results are touched
+	
+	private void search(final String key, final Cancellation c) {		
+		query.update(key, c);
+		results.removeIf((f) -> !query.contains(f) && !pinnedKeys.contains(f.key));
+		results.addAll(query.added());
 	}
 
 	private void setFont(final Control c, final int sizeDelta) {
@@ -638,13 +651,11 @@ public class GUI {
 	
 	private void setFontSize(int s) {
 		exec.submit(() -> {
+			final Transaction tx = context.begin();
 			mainTrie.insertAll(
 					new Fact(String.format("#font-size %d",  s)), 
-					context);
-			tempTrie.insertAll(
-					new Fact(String.format("#font-size %d",  s)), 
-					context);
-			context.commit();
+					tx);
+			tx.commit();
 		});
 
 		fontSize = s;
@@ -666,30 +677,29 @@ public class GUI {
 		}
 	}
 	
-	private Stream<Node> sortResults() {
-		final Set<Node> ns = tempTrie.root.getAll();
-		ns.parallelStream().forEach((n) -> n.updateScore(reader.currentInput()));
-
-		return ns.parallelStream().sorted((l, r) -> l.compareScoreTo(r))
-			.sequential();
+	private ResultView sortResults() {
+		return sortResults(Cancellation.NONE);
+	}
+	
+	private ResultView sortResults(final Cancellation c) {
+		return new ResultView(results, reader.currentInput(), c);
 	}
 
 	private void storeInput() {		
 		final Fact f = new Fact(reader.currentInput());
     	exec.submit(() -> {    		
-    		mainTrie.insertAll(f, context);			
-			tempTrie.insertAll(f.clone(), context);
-			context.commit();
+    		final Transaction tx = context.begin();
+    		mainTrie.insertAll(f, tx);			
+			tx.commit();
+			results.add(f);
 	
-			final Stream<Node> ns = sortResults();
+			final ResultView v = sortResults();
 			
 			display.asyncExec(() -> {
-	    		updateResults(ns);
+	    		updateResults(v);
 				reader.checkPerfectMatch(f.key);
 				
-				if (factItems.containsKey(f)) {
-					tree.select(factItems.get(f));
-				}
+				select(f);
 				
 				if (Key.next(f.key, 0).equals("#caption")) {
 					updateCaption();
@@ -718,10 +728,13 @@ public class GUI {
 
 	private void unpinTreeHeaders(final Collection<TreeItem> is) {
 		for (final TreeItem ti: is) {
-			if (ti.getItemCount() > 0) {
+			final ResultView.Row r = view.rows.get(tree.indexOf(ti));
+			
+			if (!r.children.isEmpty()) {
 				boolean anyUnpinned = false;
-				for (final TreeItem ci: ti.getItems()) {
-					if (!ci.getChecked()) {
+				
+				for (final Fact f: r.children) {
+					if (!pinnedKeys.contains(f.key)) {
 						anyUnpinned = true;
 						break;
 					}
@@ -729,7 +742,7 @@ public class GUI {
 				
 				if (anyUnpinned) {
 					ti.setChecked(false);
-					pinnedKeys.remove(((HasKey)ti.getData()).key());
+					pinnedKeys.remove(r.data().key());
 				}
 			}
 		}
@@ -745,7 +758,7 @@ public class GUI {
 	}
 
 	private void updateFlash() {
-		final Set<Fact> ts = mainTrie.root.findAllFacts("#flash ");
+		final Set<Fact> ts = mainTrie.findAllFacts("#flash ");
 
 		if (ts.size() == 0) {
 			flash.setText("");
@@ -781,21 +794,37 @@ public class GUI {
 		}
 	}
 	
-	public void updateResults(final Stream<Node> ns) {
-		factItems.clear();		
+	//Applies the differences to the current view to the displayed items,
+	//which keeps selection, expansion and scroll position of rows that 
+	//stay. Items are filled in by SetData.
+	
+	public void updateResults(final ResultView v) {
+		final ResultView.Diff d = view.diff(v);
+		view = v;
 		tree.setRedraw(false);
 		
 		try {
-			tree.removeAll();
+			if (d.inserted.size() + d.removed.size() > v.rows.size()) {
+				tree.removeAll();
+				tree.setItemCount(v.rows.size());
+				return;
+			}
 			
-			ns.forEach((n) -> {
-				for (final Fact t: n.facts) {
-					if (!factItems.containsKey(t)) {
-						newItem(tree, n);
-						break;
-					}
-				}
-			});
+			for (final int i: d.removed) {
+				tree.getItem(i).dispose();
+			}
+			
+			for (final int i: d.inserted) {
+				new TreeItem(tree, SWT.NONE, i);
+			}
+			
+			for (final int i: d.inserted) {
+				tree.clear(i, true);
+			}
+			
+			for (final int i: d.changed) {
+				tree.clear(i, true);
+			}
 		} finally {
 			tree.setRedraw(true);
 		}
@@ -803,15 +832,17 @@ public class GUI {
 
 	private void updateTries(final Fact f, final String k) {
 		exec.submit(() -> {
-			tempTrie.deleteAll(f, context);
-			mainTrie.deleteAll(f.prototype, context);			
-			tempTrie.insertAll(f.clone(k), context);
-			mainTrie.insertAll(f.prototype.clone(k), context);
-			context.commit();
-		
-			final Stream<Node> ns = sortResults();			
+			final Fact nf = f.clone(k);
+			final Transaction tx = context.begin();
+			mainTrie.deleteAll(f, tx);			
+			mainTrie.insertAll(nf, tx);
+			tx.commit();
+			results.remove(f);
+			results.add(nf);
+		
+			final ResultView v = sortResults();			
 			display.asyncExec(() -> {
-				updateResults(ns);
+				updateResults(v);
 				reader.checkPerfectMatch(k);
 			});
 		});
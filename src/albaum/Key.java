@@ -14,128 +14,345 @@ package albaum;
 
 import static org.junit.Assert.*;
 
+import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 
 import org.junit.Test;
 
 public abstract class Key {
+	//Receives token bounds in unquote(key)
+	
+	public interface TokenVisitor {
+		void visit(int start, int end);
+	}
+
+	//Receives the keys Key.split would return, the sequence is only valid
+	//during the call.
+	
+	public interface SplitVisitor {
+		void visit(CharSequence key);
+	}
+	
+	//Stripped combinations of a key as Key.score compares them, with bigram
+	//bloom masks for the key and each combination. A combination can only
+	//occur in a key if its bigrams are a subset of the key's, which rules
+	//out most misses before indexOf runs.
+	
+	public static final class Signature {
+		public final String key;
+		
+		public Signature(final String k) {
+			key = k;
+			final Set<String> ks = split(k, true);
+			parts = new String[ks.size()];
+			partMasks = new long[ks.size() * MASK_SIZE];
+			mask = new long[MASK_SIZE];
+			addBigrams(k, mask, 0);
+			int i = 0;
+			
+			for (final String kk: ks) {
+				parts[i] = strip(kk);
+				addBigrams(parts[i], partMasks, i * MASK_SIZE);
+				i++;
+			}
+		}
+		
+		//Number of combinations of this key that occur in s
+		
+		public int countIn(final Signature s) {
+			int res = 0;
+			
+			for (int i = 0; i < parts.length; i++) {
+				if (isSubset(partMasks, i * MASK_SIZE, s.mask) && s.key.indexOf(parts[i]) > -1) {
+					res++;
+				}
+			}
+			
+			return res;
+		}
+		
+		private static final int MASK_SIZE = 4;
+		
+		private final long[] mask;
+		private final long[] partMasks;
+		private final String[] parts;
+		
+		private static void addBigrams(final String k, final long[] m, final int o) {
+			for (int i = 1; i < k.length(); i++) {
+				final int h = ((k.charAt(i - 1) * 31 + k.charAt(i)) * 0x9e3779b1) >>> 24;
+				m[o + (h >>> 6)] |= 1L << h;
+			}
+		}
+		
+		private static boolean isSubset(final long[] m, final int o, final long[] of) {
+			for (int i = 0; i < MASK_SIZE; i++) {
+				if ((m[o + i] & ~of[i]) != 0) {
+					return false;
+				}
+			}
+			
+			return true;
+		}
+	}
+	
+	//Reusable, single threaded state for splitting keys without building
+	//strings; keys are handed out as up to two ranges of the unquoted key.
+	
+	public static final class Splitter implements CharSequence, TokenVisitor {
+		@Override
+		public char charAt(final int i) {
+			final int l = end1 - start1;
+			return source.charAt((i < l) ? start1 + i : start2 + i - l);
+		}
+		
+		@Override
+		public int length() {
+			return end1 - start1 + end2 - start2;
+		}
+		
+		public void split(final String key, final boolean includeFull, final SplitVisitor v) {
+			source = unquote(key);
+			count = 0;
+			tokens(key, this);
+			
+			final int n = count;
+			
+			for (int j = 0; j < n; j++) {
+				if (includeFull || j < n - 1) {
+					set(0, j, 0, -1);
+					v.visit(this);
+				}
+			}
+			
+			for (int i = 1; i < n - 1; i++) {
+				set(i, n - 1, 0, -1);
+				v.visit(this);
+			}
+			
+			for (int i = 0; i < n; i++) {			
+				for (int j = i + 2; j < n; j++) {
+					set(i, i, j, n - 1);
+					v.visit(this);
+				}
+			}
+			
+			source = null;
+		}
+		
+		@Override
+		public CharSequence subSequence(final int start, final int end) {
+			return toString().subSequence(start, end);
+		}
+		
+		@Override
+		public String toString() {
+			return (start2 == end2)
+				? source.substring(start1, end1)
+				: source.substring(start1, end1).concat(source.substring(start2, end2));
+		}
+		
+		@Override
+		public void visit(final int start, final int end) {
+			if (count * 2 == bounds.length) {
+				bounds = Arrays.copyOf(bounds, bounds.length * 2);
+			}
+			
+			bounds[count * 2] = start;
+			bounds[count * 2 + 1] = end;
+			count++;
+		}
+		
+		private int[] bounds = new int[32];
+		private int count;
+		private int end1, end2;
+		private String source;
+		private int start1, start2;
+		
+		//Tokens i to j, followed by tokens k to l when l >= k
+		
+		private void set(final int i, final int j, final int k, final int l) {
+			start1 = bounds[i * 2];
+			end1 = bounds[j * 2 + 1];
+			start2 = (l < k) ? 0 : bounds[k * 2];
+			end2 = (l < k) ? 0 : bounds[l * 2 + 1];
+		}
+	}
+	
+	public static boolean isSplit(final char c) {
+		return c < 64 && (SPLIT_MASK & (1L << c)) != 0;
+	}
+	
 	public static String next(final String key, final int i) {
 		int j, k;
-		for (j = i; j < key.length() && SPLIT.contains(key.charAt(j)); j++);
-		for (k = j; k < key.length() && !SPLIT.contains(key.charAt(k)); k++);
+		for (j = i; j < key.length() && isSplit(key.charAt(j)); j++);
+		for (k = j; k < key.length() && !isSplit(key.charAt(k)); k++);
 		return key.substring(j, k);
 	}
 	
 	public static int score(final String k1, final String k2) {
-		return
-		(int)split(k1, true)
-			.parallelStream()
-			.map((kk) -> strip(kk))
-			.filter((kk) -> k2.indexOf(kk) > -1)
-			.count() +
-		(int)split(k2, true)
-			.parallelStream()
-			.map((kk) -> strip(kk))
-			.filter((kk) -> k1.indexOf(kk) > -1)
-			.count();
+		return score(new Signature(k1), new Signature(k2));
+	}
+	
+	public static int score(final Signature s1, final Signature s2) {
+		return s1.countIn(s2) + s2.countIn(s1);
 	}
 	
 	public static Set<String> split(final String key, boolean includeFull) {
-		final ArrayList<String> ks = new ArrayList<String>();
+		final Set<String> res = new TreeSet<String>();
+		new Splitter().split(key, includeFull, (k) -> res.add(k.toString()));
+		return res;
+	}
+
+	public static Set<String> split(final String key) {
+		return split(key, false);
+	}
+	
+	public static String strip(final String k) {
+		int i;
+		for (i = 0; i < k.length() && isSplit(k.charAt(i)); i++);
+		
+		int j;
+		for (j = Math.max(0, k.length() - 1); j >= 0 && isSplit(k.charAt(j)); j--);
+		
+		return (j >= i) ? k.substring(i, j + 1) : "";
+	}
+	
+	//Visits the bounds of each word with its trailing delimiters in 
+	//unquote(key), quoted runs are single tokens. Returns the number of
+	//tokens.
+	
+	public static int tokens(final String key, final TokenVisitor v) {
 		boolean isQuoted = false;
-		final StringBuilder buf = new StringBuilder();
+		int start = 0;
+		int end = 0;
+		int res = 0;
 				
 		for (int i = 0; i < key.length(); i++) {
-			if (!isQuoted && SPLIT.contains(key.charAt(i))) {
-				while(i < key.length() && SPLIT.contains(key.charAt(i))) {
-					buf.append(key.charAt(i));
+			final char c = key.charAt(i);
+			
+			if (!isQuoted && isSplit(c)) {
+				while (i < key.length() && isSplit(key.charAt(i))) {
+					end++;
 					i++;
 				}
 												
-				if (buf.length() > 0) {
-					ks.add(buf.toString());
-					buf.setLength(0);
+				if (end > start) {
+					v.visit(start, end);
+					start = end;
+					res++;
 				}				
 				
 				if (i < key.length()) {
 					i--;
 				}
-			} else if (key.charAt(i) == '"' && (i == key.length() - 1 || key.charAt(i + 1) != '"')) {
+			} else if (c == '"' && (i == key.length() - 1 || key.charAt(i + 1) != '"')) {
 				isQuoted = !isQuoted;
-			} else if (key.charAt(i) == '"') {
-				buf.append('"');
+			} else if (c == '"') {
+				end++;
 				i++;
 			} else {
-				buf.append(key.charAt(i));
+				end++;
 			}
 			
-			if (i == key.length() - 1 && buf.length() > 0) {
-				ks.add(buf.toString());
-				buf.setLength(0);
+			if (i == key.length() - 1 && end > start) {
+				v.visit(start, end);
+				start = end;
+				res++;
 			}			
 		}
-				
-		final Set<String> res = new TreeSet<String>();
-				
-		for (int i = 0; i < ks.size(); i++) {
-			final StringBuilder kbuf = new StringBuilder();
-			
-			for (int j = i; j < ks.size(); j++) {
-				kbuf.append(ks.get(j));
-				
-				if (i == 0 && (includeFull || j < ks.size() - 1)) {
-					res.add(kbuf.toString());
-				}
-			}
-			
-			if (i > 0 && i < ks.size() - 1) {
-				res.add(kbuf.toString());
-			}
-		}
-		
-		for (int i = 0; i < ks.size(); i++) {			
-			for (int j = i + 2; j < ks.size(); j++) {
-				final StringBuilder kbuf = new StringBuilder();
-				kbuf.append(ks.get(i));
-				for (int k = j; k < ks.size(); k++) {
-					kbuf.append(ks.get(k));
-				}
-				res.add(kbuf.toString());
-			}
-		}
 		
 		return res;
 	}
-
-	public static Set<String> split(final String key) {
-		return split(key, false);
-	}
 	
-	public static String strip(final String k) {
-		int i;
-		for (i = 0; i < k.length() && SPLIT.contains(k.charAt(i)); i++);
+	//Drops quotes, doubled quotes become one
+	
+	public static String unquote(final String key) {
+		if (key.indexOf('"') == -1) {
+			return key;
+		}
 		
-		int j;
-		for (j = Math.max(0, k.length() - 1); j >= 0 && SPLIT.contains(k.charAt(j)); j--);
+		final StringBuilder res = new StringBuilder(key.length());
 		
-		return (j >= i) ? k.substring(i, j + 1) : "";
+		for (int i = 0; i < key.length(); i++) {
+			final char c = key.charAt(i);
+			
+			if (c != '"') {
+				res.append(c);
+			} else if (i < key.length() - 1 && key.charAt(i + 1) == '"') {
+				res.append('"');
+				i++;
+			}
+		}
+		
+		return res.toString();
 	}
 	
-	public static Set<Character> newCharSet(final String cs) {
-		final Set<Character> res = new HashSet<Character>();
+	private static final long SPLIT_MASK = mask(",;' .!");
+	
+	private static long mask(final String cs) {
+		long res = 0;
 		
-		for (final char c: cs.toCharArray()) {
-			res.add(c);
+		for (int i = 0; i < cs.length(); i++) {
+			res |= 1L << cs.charAt(i);
 		}
 		
 		return res;
 	}
 	
-	public static final Set<Character> SPLIT = 
-		newCharSet(",;' .!");
+	//Allocated bytes and time per fact for inserting split keys into a trie
+	//that already holds them, first as strings then through a Splitter.
+	
+	public static class Bench {
+		public static void main(final String[] args) {
+			final int n = (args.length > 0) ? Integer.parseInt(args[0]) : 10000;
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final List<Fact> fs = new ArrayList<>();
+			
+			for (int i = 0; i < n; i++) {
+				final Fact f = new Fact(String.format("abc %d def,ghi \"jkl %d\" mno.pqr stu %d", i % 97, i, i % 13));
+				t.insertAll(f, cx);
+				fs.add(f);
+			}
+			
+			cx.commit();
+			
+			final com.sun.management.ThreadMXBean mx = 
+				(com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+			final long id = Thread.currentThread().getId();
+			final Splitter sp = new Splitter();
+			
+			for (int r = 0; r < 5; r++) {
+				long mem = mx.getThreadAllocatedBytes(id);
+				long start = System.nanoTime();
+				
+				for (final Fact f: fs) {
+					for (final String k: split(f.key)) {
+						t.insert(k, f, cx);
+					}
+				}
+				
+				System.out.printf("strings: %d ns, %d bytes per fact%n", 
+					(System.nanoTime() - start) / n, 
+					(mx.getThreadAllocatedBytes(id) - mem) / n);
+				
+				mem = mx.getThreadAllocatedBytes(id);
+				start = System.nanoTime();
+				
+				for (final Fact f: fs) {
+					sp.split(f.key, false, (k) -> t.insert(k, f, cx));
+				}
+				
+				System.out.printf("splitter: %d ns, %d bytes per fact%n", 
+					(System.nanoTime() - start) / n, 
+					(mx.getThreadAllocatedBytes(id) - mem) / n);
+			}
+		}
+	}
 	
 	public static class Tests {		
 		@Test
@@ -146,6 +363,56 @@ public abstract class Key {
 			assertEquals("ghi", next("abc def ghi", 7));
 		}
 		
+		@Test
+		public void testTokens() {
+			final String k = "\"abc def\",ghi \"\"jkl";
+			final List<String> ts = new ArrayList<>();
+			assertEquals(3, tokens(k, (start, end) -> ts.add(unquote(k).substring(start, end))));
+			assertEquals(Arrays.asList("abc def,", "ghi ", "\"jkl"), ts);
+			assertSame("abc", unquote("abc"));
+			assertTrue(isSplit('!'));
+			assertFalse(isSplit('a'));
+		}
+		
+		@Test
+		public void testSplitter() {
+			final String k = "abc def,ghi;jkl.mno!";
+			final Set<String> ks = new TreeSet<>();
+			new Splitter().split(k, false, (kk) -> {
+				final String s = kk.toString();
+				assertEquals(s.length(), kk.length());
+				
+				for (int i = 0; i < s.length(); i++) {
+					assertEquals(s.charAt(i), kk.charAt(i));
+				}
+				
+				ks.add(s);
+			});
+			
+			assertEquals(split(k), ks);
+		}
+		
+		@Test
+		public void testScore() {
+			final String[] ks = {"abc", "abc def", "def abc ghi", "\"abc def\" ghi", "xyz", ""};
+			
+			for (final String k1: ks) {
+				for (final String k2: ks) {
+					int res = 0;
+					
+					for (final String kk: split(k1, true)) {
+						res += (k2.indexOf(strip(kk)) > -1) ? 1 : 0;
+					}
+					
+					for (final String kk: split(k2, true)) {
+						res += (k1.indexOf(strip(kk)) > -1) ? 1 : 0;
+					}
+					
+					assertEquals(res, score(k1, k2));
+				}
+			}
+		}
+		
 		@Test
 		public void testSplitSingle() {
 			Set<String> ks = Key.split("abc ", true);
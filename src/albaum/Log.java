@@ -12,31 +12,167 @@
 
 package albaum;
 
-import java.io.BufferedReader;
-import java.io.FileWriter;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+import java.util.zip.Deflater;
 
 import javax.json.Json;
 import javax.json.JsonObject;
 import javax.json.JsonReader;
-import javax.json.JsonValue;
 import javax.json.stream.JsonGenerator;
 
+import org.junit.Test;
+
 public class Log {
+	public static class Config {
+		public long checkpointSize = 1 << 20;
+		public int compactionSegments = 2;
+		//Compaction writes deflated blocks, appends always stay plain
+		public boolean compress = false;
+		public LogCodec.Format format = LogCodec.Format.JSON;
+		public long parallelLoadSize = 1 << 20;
+		//Larger files are mapped in several windows when loading
+		public int loadWindowSize = Integer.MAX_VALUE;
+		public long segmentSize = 1 << 22;
+		public LogWriter.Sync sync = LogWriter.Sync.BATCH;
+		public long syncInterval = 1000;
+	}
+	
+	private static interface RecordVisitor {
+		void visit(Fact f, boolean isDeleted);
+	}
+	
+	public final LogCodec codec;
+	public final Config config;
 	public final Context context;
 
+	//Reads from without opening it for writing, so the source is left
+	//exactly as it was
+	
+	public static void convert(final Context cx, final Path from, final Path to, final LogCodec.Format f) {
+		final Log l = readOnly(cx, from);
+		
+		try {
+			l.export(to, f);
+		} finally {
+			l.close();
+		}
+	}
+
+	public static LogCodec.Format format(final Path p) {
+		try (FileChannel c = FileChannel.open(p)) {
+			return format(c, 0);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public static boolean isCompressed(final Path p) {
+		try (FileChannel c = FileChannel.open(p)) {
+			return LogBlocks.isCompressed(c, 0);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	//Returns the uncompressed size of p, which is what offsets into
+	//segments are measured in.
+	
+	public static long logicalSize(final Path p) {
+		try (FileChannel c = FileChannel.open(p)) {
+			if (!LogBlocks.isCompressed(c, 0)) {
+				return c.size();
+			}
+			
+			long res = 0;
+			
+			for (final LogBlocks.Block b: LogBlocks.index(c, 0)) {
+				res += b.size;
+			}
+			
+			return res;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
 	public Log(final Context cx, final Path p) {
+		this(cx, p, new Config());
+	}
+
+	public Log(final Context cx, final Path p, final Config c) {
 		context = cx;
 		filePath = p;
+		checkpointPath = p.resolveSibling(p.getFileName() + ".checkpoint");
+		config = c;
+		codec = LogCodec.of(c.format, cx);
 		
-		if (!p.toFile().isFile()) {
+		final boolean isNew = !p.toFile().isFile();
+		deleteCompactions();
+		final List<Long> ss = segments();
+		segment = ss.get(ss.size() - 1);
+		sealedSegments = ss.size() - 1;
+		
+		Path sp = segmentPath(segment);
+		final long size = sp.toFile().isFile() ? sp.toFile().length() : 0;
+		segmentOffset = (size > 0) ? logicalSize(sp) : 0;
+		
+		//Segments are never mixed and appends are never compressed, a
+		//header without records or a compressed segment is rolled past
+		//rather than appended to.
+		
+		if (size > 0 && (segmentOffset == 0 || 
+			format(sp) != c.format || 
+			isCompressed(sp))) {
+			segment++;
+			sealedSegments++;
+			segmentOffset = 0;
+			sp = segmentPath(segment);
+		}
+		
+		writer = new LogWriter(sp, c.sync, c.syncInterval);
+		writtenSegment = segment;
+		writtenOffset = segmentOffset;
+		
+		if (isNew) {
 			initFact("#caption Not your mother's todo list");
 			initFact("#done ");
 			initFact("#flash ");
@@ -47,50 +183,182 @@ public class Log {
 		}
 	}
 	
-	public void commitFact(final Fact f, final Change.Type ct, final JsonGenerator json, final boolean recursive) {		
-		json
-			.write("key", f.key)
-			.write("createdAt", context.formatJS(f.createdAt));
+	//Opens an existing log without a writer, loading it never changes any
+	//file and committing, checkpointing or compacting throws
+	
+	public static Log readOnly(final Context cx, final Path p) {
+		if (!p.toFile().isFile()) {
+			throw new RuntimeException(new NoSuchFileException(p.toString()));
+		}
 		
-		switch(ct) {
-			case DELETE: {
-				json.write("deleted", true);
-				break;
-			}			
-			case INSERT: {
-				json.write("version", f.version);	
-				if (!recursive || f.previousVersion == null) {
-					json.writeNull("previousVersion");
-				} else {
-					json.writeStartObject("previousVersion");
-					commitFact(f.previousVersion, ct, json, false);
-					json.writeEnd();
+		return new Log(cx, p, new Config(), null);
+	}
+	
+	private Log(final Context cx, final Path p, final Config c, final LogWriter w) {
+		context = cx;
+		filePath = p;
+		checkpointPath = p.resolveSibling(p.getFileName() + ".checkpoint");
+		config = c;
+		codec = LogCodec.of(c.format, cx);
+		writer = w;
+	}
+	
+	public void checkpoint() {
+		checkWritable();
+		
+		synchronized (backgroundLock) {
+			writeCheckpoint();
+		}
+	}
+	
+	public long checkpointOffset() {
+		synchronized (this) {
+			return checkpointOffset;
+		}
+	}
+	
+	public long checkpointSegment() {
+		synchronized (this) {
+			return checkpointSegment;
+		}
+	}
+	
+	public void commitFact(final Fact f, final Change.Type ct) {
+		commitFacts(Collections.singletonList(f), Collections.singletonList(ct));
+	}
+
+	//Writes the facts as a single record so they reach the segment together.
+	//With Sync.BATCH, returns once the record is on disk.
+
+	public void commitFacts(final List<Fact> fs, final List<Change.Type> cts) {
+		checkWritable();
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		
+		for (int i = 0; i < fs.size(); i++) {
+			final byte[] d = codec.encode(fs.get(i), cts.get(i));
+			buf.write(d, 0, d.length);
+		}
+		
+		final byte[] data = buf.toByteArray();
+		final CountDownLatch written;
+		boolean isCheckpointDue;
+		boolean isCompactionDue = false;
+		
+		synchronized (this) {
+			if (segmentOffset >= config.segmentSize) {
+				segment++;
+				segmentOffset = 0;
+				sealedSegments++;
+				writer.roll(segmentPath(segment));
+				isCompactionDue = startCompaction();
+			}
+			
+			if (segmentOffset == 0) {
+				final byte[] h = codec.header();
+				
+				if (h.length > 0) {
+					writer.append(h);
+					segmentOffset += h.length;
 				}
-				break;
 			}
-			default:
-				throw new RuntimeException("Unknown change type: " + ct);
+			
+			segmentOffset += data.length;
+			tailSize += data.length;
+			final long s = segment;
+			final long o = segmentOffset;
+			final long t = tailSize;
+			
+			//Facts only count once their record is written, checkpoints
+			//pair them with the written position
+			
+			written = writer.append(data, () -> {
+				synchronized (this) {
+					for (int i = 0; i < fs.size(); i++) {
+						apply(fs.get(i), cts.get(i) == Change.Type.DELETE);
+					}
+					
+					writtenSegment = s;
+					writtenOffset = o;
+					writtenTail = t;
+				}
+			});
+			
+			isCheckpointDue = startCheckpoint();
+		}
+		
+		if (isCompactionDue) {
+			backgroundExec.submit(this::runCompaction);
 		}
-	}
 
-	public void commitFact(final Fact f, final Change.Type ct) {
-		FileWriter fw;
+		if (isCheckpointDue) {
+			backgroundExec.submit(this::runCheckpoint);
+		}
+		
+		//Outside the lock so concurrent commits share the sync
+		
+		if (writer.sync == LogWriter.Sync.BATCH) {
+			writer.await(written);
+		}
+	}
+	
+	public void close() {
+		backgroundExec.shutdown();
+		
 		try {
-			fw = new FileWriter(filePath.toString(), true);
-		} catch (final IOException e) {
-			throw new RuntimeException(e);
+			backgroundExec.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		
+		if (writer != null) {
+			writer.close();
+		}
+	}
+	
+	public void compact() {
+		checkWritable();
+		
+		synchronized (backgroundLock) {
+			compactSegments();
 		}
+	}
+	
+	public long compactedBytes() {
+		return compactedBytes.get();
+	}
 
-		try(JsonGenerator json = Json.createGenerator(fw)) {
-			json.writeStartObject();
-			commitFact(f, ct, json, true);
-			json.writeEnd();
+	public long compactions() {
+		return compactions.get();
+	}
+
+	public long droppedRecords() {
+		return droppedRecords.get();
+	}
+
+	public void export(final Path to, final LogCodec.Format f) {
+		flush();
+		final LogCodec c = LogCodec.of(f, context);
+		
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(to))) {
+			out.write(c.header());
 			
-			try {
-				fw.write('\n');
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+			for (final long s: segments()) {
+				read(segmentPath(s), 0, (ff, isDeleted) -> {
+					try {
+						out.write(c.encode(ff, isDeleted ? Change.Type.DELETE : Change.Type.INSERT));
+					} catch (final IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
 			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public void flush() {
+		if (writer != null) {
+			writer.flush();
 		}
 	}
 	
@@ -99,31 +367,991 @@ public class Log {
 	}
 	
 	public void load(final Trie s) {
-		try (InputStream in = Files.newInputStream(filePath);
-		    BufferedReader reader = new BufferedReader(new InputStreamReader(in))) {
-		    String line;
-		    final Set<Fact> facts = new TreeSet<Fact>();
-		    
-		    while ((line = reader.readLine()) != null) {
-		    	if (line.compareTo(" ") > 0) {
-			    	try (JsonReader json = Json.createReader(new StringReader(line))) {
-				    	final JsonObject o = json.readObject();
-				    	final Fact f = new Fact(o, context);
-				    	if (o.get("deleted") == JsonValue.TRUE) {
-				    		facts.remove(f);
-				    	} else {
-				    		facts.add(f);
-				    	}				    	
-			    	}
-		    	}
-		    }
-		    
-		    facts.parallelStream().forEach((f) -> s.insertAll(f, context));
-    		context.commit();			    	
-		} catch (IOException e) {
-		    throw new RuntimeException(e);
+		flush();
+		
+		final Set<Fact> fs = new TreeSet<Fact>();
+		final long[] cp = loadCheckpoint(fs);
+		long ts = 0;
+		
+		for (final long ss: segments()) {
+			if (ss >= cp[0]) {
+				final long o = (ss == cp[0]) ? cp[1] : 0;
+				
+				try {
+					ts += logicalSize(segmentPath(ss)) - o;
+					read(segmentPath(ss), o, replay(fs));
+				} catch (final IOException e) {
+				    throw new RuntimeException(e);
+				}
+			}
+		}
+		
+		boolean isCheckpointDue;
+		boolean isCompactionDue;
+		
+		synchronized (this) {
+			facts = fs;
+			checkpointSegment = cp[0];
+			checkpointOffset = cp[1];
+			tailSize = ts;
+			checkpointTail = 0;
+			writtenSegment = segment;
+			writtenOffset = segmentOffset;
+			writtenTail = ts;
+			isCheckpointDue = writer != null && startCheckpoint();
+			isCompactionDue = writer != null && startCompaction();
+		}
+		
+		if (isCompactionDue) {
+			backgroundExec.submit(this::runCompaction);
+		}
+
+		if (isCheckpointDue) {
+			backgroundExec.submit(this::runCheckpoint);
 		}
+		
+		fs.parallelStream().forEach((f) -> s.insertAll(f, context));
+		context.commit();			    	
+	}
+
+	public List<Long> segments() {
+		final String n = filePath.getFileName().toString();
+		final List<Long> res = new ArrayList<>();
+		res.add(0L);
+		
+		try (DirectoryStream<Path> ps = Files.newDirectoryStream(filePath.toAbsolutePath().getParent())) {
+			for (final Path p: ps) {
+				final String pn = p.getFileName().toString();
+				
+				if (pn.startsWith(n + ".")) {
+					try {
+						res.add(Long.parseLong(pn.substring(n.length() + 1)));
+					} catch (final NumberFormatException e) {
+						//checkpoints and temp files
+					}
+				}
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		Collections.sort(res);
+		return res;
+	}
+	
+	public Path segmentPath(final long s) {
+		return (s == 0) 
+			? filePath 
+			: filePath.resolveSibling(String.format("%s.%d", filePath.getFileName(), s));
+	}
+	
+	public LogWriter writer() {
+		return writer;
 	}
 
+	private static class Chunk {
+		public final BitSet deleted = new BitSet();
+		public final int end;
+		public final List<Fact> facts = new ArrayList<>();
+		public final int start;
+		
+		public Chunk(final int s, final int e) {
+			start = s;
+			end = e;
+		}
+		
+		public void decode(final ByteBuffer buf, final LogCodec c) {
+			final ByteBuffer b = buf.duplicate();
+			b.limit(end);
+			b.position(start);
+			final LogCodec.Decoder d = c.decoder(new ByteBufferInputStream(b.slice()));
+			
+			try {
+				Fact f;
+				
+				while ((f = d.next()) != null) {
+					if (d.isDeleted) {
+						deleted.set(facts.size());
+					}
+					
+					facts.add(f);
+				}
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+	}
+	
+	private static class ByteBufferInputStream extends InputStream {
+		public ByteBufferInputStream(final ByteBuffer b) {
+			buf = b;
+		}
+		
+		@Override
+		public int read() {
+			return buf.hasRemaining() ? (buf.get() & 0xff) : -1;
+		}
+		
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+			if (!buf.hasRemaining()) {
+				return -1;
+			}
+			
+			final int n = Math.min(len, buf.remaining());
+			buf.get(b, off, n);
+			return n;
+		}
+		
+		private final ByteBuffer buf;
+	}
+	
+	private static final int BLOCK_SIZE = 1 << 16;
+	
+	private final Object backgroundLock = new Object();
+	private final ExecutorService backgroundExec = 
+		Executors.newSingleThreadExecutor((r) -> {
+			final Thread t = new Thread(r, "Albaum log maintenance");
+			t.setDaemon(true);
+			return t;
+		});
+	private long checkpointOffset;
+	private final Path checkpointPath;
+	private long checkpointSegment;
+	private long checkpointTail;
+	private final AtomicLong compactedBytes = new AtomicLong(0);
+	private final AtomicLong compactions = new AtomicLong(0);
+	private final AtomicLong droppedRecords = new AtomicLong(0);
+	private Set<Fact> facts = new TreeSet<>();
 	private final Path filePath;
+	private boolean isCheckpointing;
+	private boolean isCompacting;
+	private int sealedSegments;
+	private long segment;
+	private long segmentOffset;
+	private long tailSize;
+	private final LogWriter writer;
+	private long writtenOffset;
+	private long writtenSegment;
+	private long writtenTail;
+
+	private void apply(final Fact f, final boolean isDeleted) {
+		if (isDeleted) {
+			facts.remove(f);
+		} else {
+			facts.add(f);
+		}
+	}
+	
+	private void checkWritable() {
+		if (writer == null) {
+			throw new IllegalStateException("Log is read only");
+		}
+	}
+	
+	private void compactSegments() {
+		final long active;
+		
+		synchronized (this) {
+			active = segment;
+		}
+		
+		writer.flush();
+		
+		final List<Long> sealed = new ArrayList<>();
+		
+		for (final long s: segments()) {
+			if (s < active) {
+				sealed.add(s);
+			}
+		}
+		
+		if (sealed.isEmpty()) {
+			return;
+		}
+		
+		final Set<Fact> live = new TreeSet<>();
+		final RecordVisitor apply = replay(live);
+		final AtomicLong records = new AtomicLong(0);
+		long size = 0;
+		
+		for (final long s: sealed) {
+			final Path p = segmentPath(s);
+			
+			try {
+				size += Files.size(p);
+				read(p, 0, (f, isDeleted) -> {
+					records.incrementAndGet();
+					apply.visit(f, isDeleted);
+				});
+			} catch (final IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+		
+		final long first = sealed.get(0);
+		final Path tmp = segmentPath(first).resolveSibling(segmentPath(first).getFileName() + ".compact");
+		
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+			if (config.compress) {
+				writeBlocks(out, live);
+			} else {
+				out.write(codec.header());
+				
+				for (final Fact f: live) {
+					out.write(codec.encode(f, Change.Type.INSERT));
+				}
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		//Checkpoints pointing into the rewritten segments are no longer valid
+		//and have to go before anything is swapped.
+		
+		synchronized (this) {
+			if (checkpointSegment <= sealed.get(sealed.size() - 1)) {
+				try {
+					Files.deleteIfExists(checkpointPath);
+				} catch (final IOException e) {
+					throw new RuntimeException(e);
+				}
+				
+				checkpointSegment = 0;
+				checkpointOffset = 0;
+			}
+		}
+		
+		try {
+			final long compactedSize = Files.size(tmp);
+			
+			Files.move(tmp, segmentPath(first),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+			
+			//Whatever is left of the replaced segments replays as a suffix
+			//of the history, which leaves the compacted state unchanged.
+			
+			for (final long s: sealed.subList(1, sealed.size())) {
+				Files.delete(segmentPath(s));
+			}
+			
+			compactedBytes.addAndGet(size - compactedSize);
+			
+			synchronized (this) {
+				sealedSegments -= sealed.size() - 1;
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		droppedRecords.addAndGet(records.get() - live.size());
+		compactions.incrementAndGet();
+	}
+	
+	private long[] loadCheckpoint(final Set<Fact> fs) {
+		final long[] res = {0, 0};
+		
+		if (!checkpointPath.toFile().isFile()) {
+			return res;
+		}
+		
+		try {
+			final ByteArrayOutputStream header = new ByteArrayOutputStream();
+			
+			try (InputStream in = new BufferedInputStream(Files.newInputStream(checkpointPath))) {
+				int b;
+				
+				while ((b = in.read()) != -1 && b != '\n') {
+					header.write(b);
+				}
+				
+				if (b == -1) {
+					return res;
+				}
+			}
+			
+			long s, o;
+			
+			try (JsonReader json = Json.createReader(new StringReader(header.toString("UTF-8")))) {
+				final JsonObject h = json.readObject();
+				s = h.containsKey("segment") ? h.getJsonNumber("segment").longValue() : 0;
+				o = h.getJsonNumber("offset").longValue();
+			}
+			
+			final Path sp = segmentPath(s);
+			
+			if (!sp.toFile().isFile() || o > logicalSize(sp)) {
+				return res;
+			}
+			
+			read(checkpointPath, header.size() + 1, 0, replay(fs));
+			res[0] = s;
+			res[1] = o;
+			return res;
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static LogCodec.Format format(final FileChannel c, final long base) throws IOException {
+		if (LogBlocks.isCompressed(c, base)) {
+			final List<LogBlocks.Block> bs = LogBlocks.index(c, base);
+			
+			if (bs.isEmpty()) {
+				return LogCodec.Format.JSON;
+			}
+			
+			final byte[] b = LogBlocks.decompress(c, bs.get(0));
+			return LogCodec.detect(b, Math.min(b.length, LogCodec.MAGIC.length));
+		}
+		
+		final ByteBuffer h = ByteBuffer.allocate(LogCodec.MAGIC.length);
+		
+		while (h.hasRemaining() && c.read(h, base + h.position()) > 0);
+		
+		return LogCodec.detect(h.array(), h.position());
+	}
+	
+	private void read(final LogCodec.Decoder d, final RecordVisitor v) throws IOException {
+		Fact f;
+		
+		while ((f = d.next()) != null) {
+			v.visit(f, d.isDeleted);
+		}
+	}
+
+	private void read(final Path p, final long o, final RecordVisitor v) throws IOException {
+		read(p, 0, o, v);
+	}
+
+	//Reads records from the segment formatted data starting at base in p,
+	//skipping to offset o. Larger inputs are memory mapped and split at 
+	//record boundaries into chunks that are decoded in parallel, records 
+	//are then visited in log order.
+	
+	private void read(final Path p, final long base, final long o, final RecordVisitor v) throws IOException {
+		try (FileChannel c = FileChannel.open(p)) {
+			if (LogBlocks.isCompressed(c, base)) {
+				readBlocks(c, base, o, v);
+				return;
+			}
+			
+			final LogCodec.Format f = format(c, base);
+			final long size = c.size();
+			final long start = Math.max(base + o, 
+				base + ((f == LogCodec.Format.BINARY) ? LogCodec.MAGIC.length : 0));
+			
+			if (size - start < config.parallelLoadSize) {
+				c.position(start);
+				read(LogCodec.of(f, context)
+					.decoder(new BufferedInputStream(Channels.newInputStream(c))), v);
+				return;
+			}
+			
+			//Mappings are limited to 2 GB, larger files are mapped one 
+			//window at a time and each window ends at a record boundary
+			
+			long pos = start;
+			
+			while (pos < size) {
+				final long len = Math.min(size - pos, config.loadWindowSize);
+				final boolean isLast = pos + len == size;
+				final MappedByteBuffer buf = c.map(FileChannel.MapMode.READ_ONLY, pos, len);
+				final List<Chunk> cs = split(buf, 0, f, isLast);
+				
+				if (cs.isEmpty()) {
+					throw new RuntimeException(String.format("Log record at %d in %s exceeds the load window", pos, p));
+				}
+				
+				cs.parallelStream().forEach((ch) -> ch.decode(buf, LogCodec.of(f, context)));
+				
+				for (final Chunk ch: cs) {
+					for (int i = 0; i < ch.facts.size(); i++) {
+						v.visit(ch.facts.get(i), ch.deleted.get(i));
+					}
+				}
+				
+				pos += isLast ? len : cs.get(cs.size() - 1).end;
+			}
+		}
+	}
+	
+	//Blocks hold whole records and decompress independently, the ones
+	//past offset o are decoded in parallel for larger inputs.
+	
+	private void readBlocks(final FileChannel c, final long base, final long o, final RecordVisitor v) throws IOException {
+		final List<LogBlocks.Block> bs = new ArrayList<>();
+		long size = 0;
+		
+		for (final LogBlocks.Block b: LogBlocks.index(c, base)) {
+			if (b.offset + b.size > o) {
+				bs.add(b);
+				size += b.compressedSize;
+			}
+		}
+		
+		if (bs.isEmpty()) {
+			return;
+		}
+		
+		final LogCodec.Format f = format(c, base);
+		final long hs = (f == LogCodec.Format.BINARY) ? LogCodec.MAGIC.length : 0;
+		final List<Chunk> cs = new ArrayList<>();
+		
+		for (final LogBlocks.Block b: bs) {
+			cs.add(new Chunk((int)Math.max(Math.max(o, hs) - b.offset, 0), b.size));
+		}
+		
+		IntStream is = IntStream.range(0, bs.size());
+		
+		if (size >= config.parallelLoadSize) {
+			is = is.parallel();
+		}
+		
+		is.forEach((i) -> {
+			try {
+				cs.get(i).decode(ByteBuffer.wrap(LogBlocks.decompress(c, bs.get(i))), LogCodec.of(f, context));
+			} catch (final IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		});
+		
+		for (final Chunk ch: cs) {
+			for (int i = 0; i < ch.facts.size(); i++) {
+				v.visit(ch.facts.get(i), ch.deleted.get(i));
+			}
+		}
+	}
+	
+	//Output of a compaction that didn't finish, the segments it was
+	//rewriting are still in place
+	
+	private void deleteCompactions() {
+		final String n = filePath.getFileName().toString();
+		
+		try (DirectoryStream<Path> ps = Files.newDirectoryStream(filePath.toAbsolutePath().getParent())) {
+			for (final Path p: ps) {
+				final String pn = p.getFileName().toString();
+				
+				if (pn.startsWith(n + ".") && pn.endsWith(".compact")) {
+					Files.deleteIfExists(p);
+				}
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static RecordVisitor replay(final Set<Fact> fs) {
+		return (f, isDeleted) -> {
+	    	if (isDeleted) {
+	    		fs.remove(f);
+	    	} else {
+	    		fs.add(f);
+	    	}				    	
+		};
+	}
+	
+	private void runCheckpoint() {
+		try {
+			checkpoint();
+		} finally {
+			synchronized (this) {
+				isCheckpointing = false;
+			}
+		}
+	}
+	
+	private void runCompaction() {
+		try {
+			compact();
+		} finally {
+			synchronized (this) {
+				isCompacting = false;
+			}
+		}
+	}
+
+	//Splits the records from start into chunks for parallel decoding. Unless
+	//isLast, a record cut off by the end of buf is left out.
+	
+	private static List<Chunk> split(final ByteBuffer buf, final int start, final LogCodec.Format f, 
+			final boolean isLast) {
+		int size = buf.limit();
+		final int n = Runtime.getRuntime().availableProcessors() * 4;
+		final int target = Math.max((size - start) / n, 1);
+		final List<Chunk> res = new ArrayList<>();
+		int cs = start;
+		
+		if (f == LogCodec.Format.BINARY) {
+			int i = start;
+			
+			while (i < size) {
+				final int len = LogCodec.Binary.recordLength(buf, i);
+				
+				if (len < 0 && !isLast) {
+					break;
+				}
+				
+				i = (len < 0) ? size : i + len;
+				
+				if (i - cs >= target) {
+					res.add(new Chunk(cs, i));
+					cs = i;
+				}
+			}
+			
+			if (i > cs) {
+				res.add(new Chunk(cs, i));
+			}
+		} else {
+			if (!isLast) {
+				while (size > start && buf.get(size - 1) != '\n') {
+					size--;
+				}
+			}
+			
+			while (cs < size) {
+				int i = Math.min(cs + target, size);
+				
+				while (i < size && buf.get(i - 1) != '\n') {
+					i++;
+				}
+				
+				res.add(new Chunk(cs, i));
+				cs = i;
+			}
+		}
+		
+		return res;
+	}
+	
+	private boolean startCheckpoint() {
+		if (isCheckpointing || tailSize - checkpointTail < config.checkpointSize) {
+			return false;
+		}
+		
+		isCheckpointing = true;
+		return true;
+	}
+	
+	private boolean startCompaction() {
+		if (isCompacting || sealedSegments < config.compactionSegments) {
+			return false;
+		}
+		
+		isCompacting = true;
+		return true;
+	}
+	
+	private void writeBlocks(final OutputStream out, final Set<Fact> fs) throws IOException {
+		final Deflater d = new Deflater();
+		final ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		
+		try {
+			out.write(LogBlocks.MAGIC);
+			buf.write(codec.header());
+			
+			for (final Fact f: fs) {
+				buf.write(codec.encode(f, Change.Type.INSERT));
+				
+				if (buf.size() >= BLOCK_SIZE) {
+					out.write(LogBlocks.compress(d, buf.toByteArray(), 0, buf.size()));
+					buf.reset();
+				}
+			}
+			
+			if (buf.size() > 0) {
+				out.write(LogBlocks.compress(d, buf.toByteArray(), 0, buf.size()));
+			}
+		} finally {
+			d.end();
+		}
+	}
+	
+	private void writeCheckpoint() {
+		final List<Fact> fs;
+		final long s, o, t;
+		
+		synchronized (this) {
+			fs = new ArrayList<>(facts);
+			s = writtenSegment;
+			o = writtenOffset;
+			t = writtenTail;
+		}
+		
+		writer.flush();
+		
+		final Path tmp = checkpointPath.resolveSibling(checkpointPath.getFileName() + ".tmp");
+		
+		final StringWriter header = new StringWriter();
+		
+		try (JsonGenerator json = Json.createGenerator(header)) {
+			json.writeStartObject()
+				.write("segment", s)
+				.write("offset", o)
+				.writeEnd();
+		}
+		
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(tmp))) {
+			out.write(header.toString().getBytes(StandardCharsets.UTF_8));
+			out.write('\n');
+			out.write(codec.header());
+
+			for (final Fact f: fs) {
+				out.write(codec.encode(f, Change.Type.INSERT));
+			}
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		try {
+			Files.move(tmp, checkpointPath, 
+				StandardCopyOption.REPLACE_EXISTING, 
+				StandardCopyOption.ATOMIC_MOVE);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+		
+		synchronized (this) {
+			checkpointSegment = s;
+			checkpointOffset = o;
+			checkpointTail = t;
+		}
+	}
+	
+	public static class Tests {
+		private static void delete(final Path dir) throws IOException {
+			Files.walk(dir)
+				.sorted(Comparator.reverseOrder())
+				.forEach((p) -> p.toFile().delete());
+		}
+		
+		@Test
+		public void testGroupCommit() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			final Log.Config c = new Log.Config();
+			c.sync = LogWriter.Sync.INTERVAL;
+			c.syncInterval = 10;
+			final Log l = new Log(cx, p, c);
+			
+			IntStream.range(0, 100).parallel().forEach((i) -> 
+				l.commitFact(new Fact("abc " + i), Change.Type.INSERT));
+			l.flush();
+			
+			assertEquals(107, l.writer().recordCount());
+			assertTrue(l.writer().batchCount() <= 107);
+			
+			final Trie t = new Trie(l);
+			assertEquals(100, t.find("abc ").getAllFacts().size());
+			
+			l.close();
+			delete(d);
+		}
+		
+		@Test
+		public void testBatchSync() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			final Log l = new Log(new Context(), p, new Log.Config());
+			final long rc = l.writer().recordCount();
+			final long sc = l.writer().syncCount();
+			
+			l.commitFact(new Fact("abc"), Change.Type.INSERT);
+			assertEquals(rc + 1, l.writer().recordCount());
+			assertTrue(l.writer().syncCount() > sc);
+			l.close();
+			delete(d);
+		}
+
+		@Test
+		public void testWriterError() throws IOException {
+			final Path p = Files.createTempFile("albaum", ".log");
+			final LogWriter w = new LogWriter(p, LogWriter.Sync.BATCH, 1000);
+			final CountDownLatch l = w.append(new byte[] {'x'}, () -> {
+				throw new IllegalStateException();
+			});
+			
+			try {
+				w.await(l);
+				fail("expected write error");
+			} catch (final RuntimeException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+			
+			try {
+				w.append(new byte[] {'y'});
+				fail("expected write error");
+			} catch (final RuntimeException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+			}
+			
+			Files.delete(p);
+		}
+
+		@Test
+		public void testReadOnly() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			final Context cx = new Context();
+			Log l = new Log(cx, p);
+			l.commitFact(new Fact("abc"), Change.Type.INSERT);
+			l.close();
+			final long size = Files.size(p);
+			
+			l = Log.readOnly(cx, p);
+			final Trie t = new Trie(l);
+			assertNotNull(t.root.findFirstFact("abc"));
+			
+			try {
+				l.commitFact(new Fact("def"), Change.Type.INSERT);
+				fail("expected read only log");
+			} catch (final IllegalStateException e) {
+				l.close();
+			}
+			
+			assertEquals(size, Files.size(p));
+			assertEquals(1, l.segments().size());
+			delete(d);
+		}
+
+		@Test
+		public void testCommitFacts() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			final Log l = new Log(cx, p, new Log.Config());
+			l.flush();
+			final long rc = l.writer().recordCount();
+			
+			final Fact abc = new Fact("abc");
+			l.commitFact(abc, Change.Type.INSERT);
+			l.commitFacts(
+				Arrays.asList(abc, new Fact("def"), new Fact("ghi")), 
+				Arrays.asList(Change.Type.DELETE, Change.Type.INSERT, Change.Type.INSERT));
+			l.flush();
+			assertEquals(rc + 2, l.writer().recordCount());
+			l.close();
+			
+			final Log ll = new Log(cx, p, new Log.Config());
+			final Trie t = new Trie(ll);
+			assertNull(t.root.findFirstFact("abc"));
+			assertNotNull(t.root.findFirstFact("def"));
+			assertNotNull(t.root.findFirstFact("ghi"));
+			ll.close();
+			delete(d);
+		}
+		
+		@Test
+		public void testCheckpoint() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			final Log.Config c = new Log.Config();
+			c.checkpointSize = Long.MAX_VALUE;
+			Log l = new Log(cx, p, c);
+			
+			final Fact abc = new Fact("abc");
+			final Fact def = new Fact("def");
+			l.commitFact(abc, Change.Type.INSERT);
+			l.commitFact(def, Change.Type.INSERT);
+			l.checkpoint();
+			
+			final long o = l.checkpointOffset();
+			assertEquals(Files.size(p), o);
+			
+			l.commitFact(def, Change.Type.DELETE);
+			l.commitFact(new Fact("ghi"), Change.Type.INSERT);
+			l.close();
+			
+			l = new Log(cx, p, c);
+			final Trie t = new Trie(l);
+			assertEquals(o, l.checkpointOffset());
+			assertNotNull(t.root.findFirstFact("abc"));
+			assertNull(t.root.findFirstFact("def"));
+			assertNotNull(t.root.findFirstFact("ghi"));
+			l.close();
+			delete(d);
+		}
+		
+		@Test
+		public void testCompaction() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			final Log.Config c = new Log.Config();
+			c.checkpointSize = Long.MAX_VALUE;
+			c.compactionSegments = Integer.MAX_VALUE;
+			c.segmentSize = 512;
+			Log l = new Log(cx, p, c);
+			
+			for (int i = 0; i < 50; i++) {
+				final Fact f = new Fact("abc " + i);
+				l.commitFact(f, Change.Type.INSERT);
+				
+				if (i % 2 == 0) {
+					l.commitFact(f, Change.Type.DELETE);
+				}
+			}
+			
+			l.flush();
+			assertTrue(l.segments().size() > 2);
+			
+			l.compact();
+			assertEquals(2, l.segments().size());
+			assertEquals(1, l.compactions());
+			assertTrue(l.compactedBytes() > 0);
+			assertTrue(l.droppedRecords() > 0);
+			l.close();
+			
+			final Path tmp = d.resolve("commit.log.1.compact");
+			Files.write(tmp, new byte[] {'x'});
+			l = new Log(cx, p, c);
+			assertFalse(tmp.toFile().exists());
+			final Trie t = new Trie(l);
+			assertEquals(25, t.find("abc ").getAllFacts().size());
+			l.close();
+			delete(d);
+		}
+	
+		@Test
+		public void testBinary() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			Log l = new Log(cx, p);
+			l.commitFact(new Fact("abc"), Change.Type.INSERT);
+			l.close();
+			
+			final Log.Config c = new Log.Config();
+			c.format = LogCodec.Format.BINARY;
+			l = new Log(cx, p, c);
+			final Fact def = new Fact("def").clone("def ghi");
+			l.commitFact(def, Change.Type.INSERT);
+			l.close();
+			
+			assertEquals(LogCodec.Format.JSON, Log.format(p));
+			assertEquals(LogCodec.Format.BINARY, Log.format(l.segmentPath(1)));
+			
+			l = new Log(cx, p, c);
+			Trie t = new Trie(l);
+			assertNotNull(t.root.findFirstFact("abc"));
+			assertEquals(2, t.root.findFirstFact("def ghi").version);
+			l.close();
+			
+			final Path bp = d.resolve("binary.log");
+			Log.convert(cx, p, bp, LogCodec.Format.BINARY);
+			assertEquals(LogCodec.Format.BINARY, Log.format(bp));
+			assertEquals(2, l.segments().size());
+			
+			try {
+				Log.convert(cx, d.resolve("missing.log"), d.resolve("out.log"), LogCodec.Format.JSON);
+				fail("expected missing source");
+			} catch (final RuntimeException e) {
+				assertFalse(d.resolve("missing.log").toFile().exists());
+			}
+
+			l = new Log(cx, bp, c);
+			t = new Trie(l);
+			assertNotNull(t.root.findFirstFact("abc"));
+			assertNotNull(t.root.findFirstFact("#font "));
+			assertEquals(2, t.root.findFirstFact("def ghi").version);
+			l.close();
+			delete(d);
+		}
+	
+		@Test
+		public void testCompressed() throws IOException {
+			final Path d = Files.createTempDirectory("albaum");
+			final Path p = d.resolve("commit.log");
+			
+			final Context cx = new Context();
+			final Log.Config c = new Log.Config();
+			c.checkpointSize = Long.MAX_VALUE;
+			c.compactionSegments = Integer.MAX_VALUE;
+			c.compress = true;
+			c.parallelLoadSize = 0;
+			c.segmentSize = 2048;
+			Log l = new Log(cx, p, c);
+			
+			for (int i = 0; i < 100; i++) {
+				final Fact f = new Fact("abc " + i);
+				l.commitFact(f, Change.Type.INSERT);
+				
+				if (i % 4 == 0) {
+					l.commitFact(f, Change.Type.DELETE);
+				}
+				
+				if (i == 50) {
+					l.checkpoint();
+				}
+			}
+			
+			l.close();
+			assertFalse(Log.isCompressed(p));
+			
+			l = new Log(cx, p, c);
+			Trie t = new Trie(l);
+			assertTrue(l.checkpointOffset() > 0);
+			assertEquals(75, t.find("abc ").getAllFacts().size());
+			l.compact();
+			l.close();
+			
+			assertEquals(2, l.segments().size());
+			assertTrue(Log.isCompressed(p));
+			assertTrue(Log.logicalSize(p) > Files.size(p));
+			assertFalse(Log.isCompressed(l.segmentPath(l.segments().get(1))));
+			
+			l = new Log(cx, p, c);
+			t = new Trie(l);
+			assertEquals(75, t.find("abc ").getAllFacts().size());
+			l.close();
+			delete(d);
+		}
+	
+		@Test
+		public void testParallelLoad() throws IOException {
+			for (final LogCodec.Format f: LogCodec.Format.values()) {
+				final Path d = Files.createTempDirectory("albaum");
+				final Path p = d.resolve("commit.log");
+				
+				final Context cx = new Context();
+				final Log.Config c = new Log.Config();
+				c.format = f;
+				c.parallelLoadSize = 0;
+				Log l = new Log(cx, p, c);
+				
+				for (int i = 0; i < 200; i++) {
+					final Fact ff = new Fact("abc " + i);
+					l.commitFact(ff, Change.Type.INSERT);
+					
+					if (i % 3 == 0) {
+						l.commitFact(ff, Change.Type.DELETE);
+					}
+				}
+				
+				l.close();
+				
+				l = new Log(cx, p, c);
+				Trie t = new Trie(l);
+				assertEquals(133, t.find("abc ").getAllFacts().size());
+				l.close();
+				
+				c.loadWindowSize = 256;
+				l = new Log(cx, p, c);
+				t = new Trie(l);
+				assertEquals(133, t.find("abc ").getAllFacts().size());
+				l.close();
+				delete(d);
+			}
+		}
+	}
 }
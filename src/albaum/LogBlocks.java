@@ -0,0 +1,206 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.junit.Test;
+
+//Compressed segments start with MAGIC, followed by independently deflated
+//blocks that each hold whole records. Every block starts with a header of
+//raw length, compressed length and CRC32 of the raw data; walking the
+//headers gives the block index.
+
+public final class LogBlocks {
+	public static final int HEADER_SIZE = 12;
+	public static final byte[] MAGIC = {'A', 'L', 'Z', 1};
+
+	public static class Block {
+		public final int compressedSize;
+		public final long crc;
+		public final long offset;
+		public final long position;
+		public final int size;
+
+		public Block(final long p, final long o, final int s, final int cs, final long c) {
+			position = p;
+			offset = o;
+			size = s;
+			compressedSize = cs;
+			crc = c;
+		}
+	}
+
+	public static byte[] compress(final Deflater d, final byte[] data, final int off, final int len) {
+		d.reset();
+		d.setInput(data, off, len);
+		d.finish();
+
+		byte[] buf = new byte[HEADER_SIZE + len / 2 + 64];
+		int n = HEADER_SIZE;
+
+		while (!d.finished()) {
+			if (n == buf.length) {
+				final byte[] nbuf = new byte[buf.length * 2];
+				System.arraycopy(buf, 0, nbuf, 0, n);
+				buf = nbuf;
+			}
+
+			n += d.deflate(buf, n, buf.length - n);
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(data, off, len);
+
+		final ByteBuffer h = ByteBuffer.wrap(buf, 0, HEADER_SIZE);
+		h.putInt(len);
+		h.putInt(n - HEADER_SIZE);
+		h.putInt((int)crc.getValue());
+
+		final byte[] res = new byte[n];
+		System.arraycopy(buf, 0, res, 0, n);
+		return res;
+	}
+
+	public static byte[] decompress(final FileChannel c, final Block b) throws IOException {
+		final ByteBuffer in = ByteBuffer.allocate(b.compressedSize);
+
+		while (in.hasRemaining()) {
+			if (c.read(in, b.position + HEADER_SIZE + in.position()) < 0) {
+				throw new IOException("Truncated log block");
+			}
+		}
+
+		final Inflater inf = new Inflater();
+		final byte[] res = new byte[b.size];
+
+		try {
+			inf.setInput(in.array());
+			int n = 0;
+
+			while (n < res.length && !inf.finished()) {
+				final int r = inf.inflate(res, n, res.length - n);
+
+				if (r == 0 && (inf.needsInput() || inf.needsDictionary())) {
+					break;
+				}
+
+				n += r;
+			}
+
+			if (n != res.length) {
+				throw new IOException("Truncated log block");
+			}
+		} catch (final DataFormatException e) {
+			throw new IOException(e);
+		} finally {
+			inf.end();
+		}
+
+		final CRC32 crc = new CRC32();
+		crc.update(res, 0, res.length);
+
+		if (crc.getValue() != b.crc) {
+			throw new IOException("Corrupt log block");
+		}
+
+		return res;
+	}
+
+	public static List<Block> index(final FileChannel c, final long base) throws IOException {
+		final List<Block> res = new ArrayList<>();
+		final ByteBuffer h = ByteBuffer.allocate(HEADER_SIZE);
+		final long size = c.size();
+		long p = base + MAGIC.length;
+		long o = 0;
+
+		while (p + HEADER_SIZE <= size) {
+			h.clear();
+
+			while (h.hasRemaining() && c.read(h, p + h.position()) > 0);
+
+			h.flip();
+			final int s = h.getInt();
+			final int cs = h.getInt();
+			final long crc = h.getInt() & 0xffffffffL;
+
+			if (p + HEADER_SIZE + cs > size) {
+				break;
+			}
+
+			res.add(new Block(p, o, s, cs, crc));
+			p += HEADER_SIZE + cs;
+			o += s;
+		}
+
+		return res;
+	}
+
+	public static boolean isCompressed(final FileChannel c, final long base) throws IOException {
+		final ByteBuffer h = ByteBuffer.allocate(MAGIC.length);
+
+		while (h.hasRemaining() && c.read(h, base + h.position()) > 0);
+
+		if (h.hasRemaining()) {
+			return false;
+		}
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (h.get(i) != MAGIC[i]) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private LogBlocks() { }
+
+	public static class Tests {
+		@Test
+		public void testRoundTrip() throws IOException {
+			final java.nio.file.Path p = java.nio.file.Files.createTempFile("albaum", ".log");
+			final Deflater d = new Deflater();
+			final byte[] b1 = "{\"key\":\"abc\"}\n{\"key\":\"abc def\"}\n".getBytes(StandardCharsets.UTF_8);
+			final byte[] b2 = "{\"key\":\"ghi\"}\n".getBytes(StandardCharsets.UTF_8);
+
+			try (FileChannel c = FileChannel.open(p, java.nio.file.StandardOpenOption.WRITE)) {
+				c.write(ByteBuffer.wrap(MAGIC));
+				c.write(ByteBuffer.wrap(compress(d, b1, 0, b1.length)));
+				c.write(ByteBuffer.wrap(compress(d, b2, 0, b2.length)));
+			}
+
+			try (FileChannel c = FileChannel.open(p)) {
+				final List<Block> bs = index(c, 0);
+				assertEquals(2, bs.size());
+				assertEquals(b1.length, bs.get(1).offset);
+				assertArrayEquals(b1, decompress(c, bs.get(0)));
+				assertArrayEquals(b2, decompress(c, bs.get(1)));
+			}
+
+			java.nio.file.Files.delete(p);
+		}
+	}
+}
@@ -0,0 +1,670 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.zip.CRC32;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.JsonValue;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParsingException;
+
+import org.junit.Test;
+
+//Record encodings for the fact log; JSON lines is the original format,
+//binary segments start with MAGIC and hold length prefixed records
+//followed by a CRC32 of the payload.
+
+public abstract class LogCodec {
+	public enum Format {JSON, BINARY};
+
+	public static final byte[] MAGIC = {'A', 'L', 'B', 1};
+
+	public static abstract class Decoder {
+		public boolean isDeleted;
+
+		public abstract Fact next() throws IOException;
+	}
+
+	public final Format format;
+
+	public static Format detect(final byte[] header, final int len) {
+		if (len < MAGIC.length) {
+			return Format.JSON;
+		}
+
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (header[i] != MAGIC[i]) {
+				return Format.JSON;
+			}
+		}
+
+		return Format.BINARY;
+	}
+
+	public static LogCodec of(final Format f, final Context cx) {
+		switch (f) {
+			case BINARY:
+				return new Binary();
+			case JSON:
+				return new JSON(cx);
+			default:
+				throw new RuntimeException("Unknown log format: " + f);
+		}
+	}
+
+	public abstract Decoder decoder(InputStream in);
+
+	public abstract byte[] encode(Fact f, Change.Type ct);
+
+	public byte[] header() {
+		return new byte[0];
+	}
+
+	protected LogCodec(final Format f) {
+		format = f;
+	}
+
+	public static class Binary extends LogCodec {
+		public static final int DELETED = 1;
+		public static final int PREVIOUS = 2;
+
+		public Binary() {
+			super(Format.BINARY);
+		}
+
+		@Override
+		public Decoder decoder(final InputStream in) {
+			return new BinaryDecoder(in);
+		}
+
+		@Override
+		public byte[] encode(final Fact f, final Change.Type ct) {
+			final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+			final boolean isDeleted = ct == Change.Type.DELETE;
+			final boolean hasPrevious = !isDeleted && f.previousVersion != null;
+
+			payload.write((isDeleted ? DELETED : 0) | (hasPrevious ? PREVIOUS : 0));
+			encode(f, payload);
+
+			if (hasPrevious) {
+				encode(f.previousVersion, payload);
+			}
+
+			final byte[] p = payload.toByteArray();
+			final CRC32 crc = new CRC32();
+			crc.update(p, 0, p.length);
+			final long c = crc.getValue();
+
+			final ByteArrayOutputStream res = new ByteArrayOutputStream(p.length + 9);
+			writeVarLong(res, p.length);
+			res.write(p, 0, p.length);
+			res.write((int)(c >>> 24));
+			res.write((int)(c >>> 16));
+			res.write((int)(c >>> 8));
+			res.write((int)c);
+			return res.toByteArray();
+		}
+
+		@Override
+		public byte[] header() {
+			return MAGIC.clone();
+		}
+
+		//Returns the full length of the record starting at i in buf, or -1 if
+		//it is truncated.
+		
+		public static int recordLength(final ByteBuffer buf, final int i) {
+			long len = 0;
+			int j = i;
+
+			for (int shift = 0; j < buf.limit(); shift += 7) {
+				final int b = buf.get(j++);
+				len |= (long)(b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0) {
+					final long res = (j - i) + len + 4;
+					return (i + res > buf.limit()) ? -1 : (int)res;
+				}
+			}
+
+			return -1;
+		}
+
+		private static void encode(final Fact f, final ByteArrayOutputStream out) {
+			final long ms = f.createdAt.toEpochMilli();
+			writeVarLong(out, (ms << 1) ^ (ms >> 63));
+			writeVarLong(out, f.version);
+			final byte[] k = f.key.getBytes(StandardCharsets.UTF_8);
+			writeVarLong(out, k.length);
+			out.write(k, 0, k.length);
+		}
+
+		private static void writeVarLong(final ByteArrayOutputStream out, long v) {
+			while ((v & ~0x7fL) != 0) {
+				out.write((int)((v & 0x7f) | 0x80));
+				v >>>= 7;
+			}
+
+			out.write((int)v);
+		}
+	}
+
+	public static class JSON extends LogCodec {
+		public final Context context;
+
+		public JSON(final Context cx) {
+			super(Format.JSON);
+			context = cx;
+		}
+
+		@Override
+		public Decoder decoder(final InputStream in) {
+			final JsonParser json = Json.createParser(
+				new JsonLines(new InputStreamReader(in, StandardCharsets.UTF_8)));
+
+			if (!json.hasNext() || json.next() != JsonParser.Event.START_ARRAY) {
+				throw new JsonParsingException("Expected record stream", json.getLocation());
+			}
+
+			return new Decoder() {
+				@Override
+				public Fact next() throws IOException {
+					if (!json.hasNext()) {
+						return null;
+					}
+
+					final JsonParser.Event e = json.next();
+
+					if (e == JsonParser.Event.END_ARRAY) {
+						json.close();
+						return null;
+					}
+
+					if (e != JsonParser.Event.START_OBJECT) {
+						throw new JsonParsingException("Expected record", json.getLocation());
+					}
+
+					isDeleted = false;
+					return read(this, json);
+				}
+			};
+		}
+
+		//The original decoder, one JsonReader and object tree per line
+		
+		public Decoder treeDecoder(final InputStream in) {
+			final BufferedReader reader =
+				new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+
+			return new Decoder() {
+				@Override
+				public Fact next() throws IOException {
+				    String line;
+
+				    while ((line = reader.readLine()) != null) {
+				    	if (line.compareTo(" ") > 0) {
+					    	try (JsonReader json = Json.createReader(new StringReader(line))) {
+						    	final JsonObject o = json.readObject();
+						    	isDeleted = o.get("deleted") == JsonValue.TRUE;
+						    	return new Fact(o, context);
+					    	}
+				    	}
+				    }
+
+				    return null;
+				}
+			};
+		}
+
+		@Override
+		public byte[] encode(final Fact f, final Change.Type ct) {
+			final StringWriter buf = new StringWriter();
+
+			try(JsonGenerator json = Json.createGenerator(buf)) {
+				json.writeStartObject();
+				write(f, ct, json, true);
+				json.writeEnd();
+			}
+
+			buf.write('\n');
+			return buf.toString().getBytes(StandardCharsets.UTF_8);
+		}
+
+		public void write(final Fact f, final Change.Type ct, final JsonGenerator json, final boolean recursive) {
+			json
+				.write("key", f.key)
+				.write("createdAt", context.formatJS(f.createdAt));
+
+			switch(ct) {
+				case DELETE: {
+					json.write("deleted", true);
+					break;
+				}
+				case INSERT: {
+					json.write("version", f.version);
+					if (!recursive || f.previousVersion == null) {
+						json.writeNull("previousVersion");
+					} else {
+						json.writeStartObject("previousVersion");
+						write(f.previousVersion, ct, json, false);
+						json.writeEnd();
+					}
+					break;
+				}
+				default:
+					throw new RuntimeException("Unknown change type: " + ct);
+			}
+		}
+
+		//Builds a fact from the parser, positioned right after START_OBJECT.
+		
+		private Fact read(final Decoder d, final JsonParser json) {
+			String k = null;
+			String ca = "";
+			Fact pv = null;
+			int v = 1;
+
+			for (JsonParser.Event e = json.next(); e != JsonParser.Event.END_OBJECT; e = json.next()) {
+				final String n = json.getString();
+				e = json.next();
+
+				switch (n) {
+					case "key":
+						k = json.getString();
+						break;
+					case "createdAt":
+						ca = json.getString();
+						break;
+					case "version":
+						v = json.getInt();
+						break;
+					case "deleted":
+						d.isDeleted = e == JsonParser.Event.VALUE_TRUE;
+						break;
+					case "previousVersion":
+						if (e == JsonParser.Event.START_OBJECT) {
+							final boolean isDeleted = d.isDeleted;
+							pv = read(d, json);
+							d.isDeleted = isDeleted;
+						}
+						break;
+					default:
+						skip(json, e);
+				}
+			}
+
+			return new Fact(k, context.parseTimeJS(ca), pv, v);
+		}
+
+		private static void skip(final JsonParser json, final JsonParser.Event e) {
+			if (e == JsonParser.Event.START_OBJECT || e == JsonParser.Event.START_ARRAY) {
+				int depth = 1;
+
+				while (depth > 0) {
+					switch (json.next()) {
+						case START_OBJECT:
+						case START_ARRAY:
+							depth++;
+							break;
+						case END_OBJECT:
+						case END_ARRAY:
+							depth--;
+							break;
+						default:
+					}
+				}
+			}
+		}
+	}
+
+	//Presents a stream of JSON lines as one JSON array by adding brackets and
+	//turning line breaks between records into commas.
+
+	private static class JsonLines extends Reader {
+		public JsonLines(final Reader r) {
+			in = r;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+
+		@Override
+		public int read(final char[] cbuf, final int off, final int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+
+			int n = 0;
+
+			if (!isStarted) {
+				cbuf[off + n++] = '[';
+				isStarted = true;
+			}
+
+			while (n < len) {
+				if (pending != 0) {
+					cbuf[off + n++] = pending;
+					pending = 0;
+					continue;
+				}
+
+				if (pos == limit) {
+					if (isEnded) {
+						break;
+					}
+
+					limit = in.read(buf, 0, buf.length);
+					pos = 0;
+
+					if (limit <= 0) {
+						limit = 0;
+						isEnded = true;
+						cbuf[off + n++] = ']';
+						break;
+					}
+				}
+
+				final char c = buf[pos++];
+
+				if (c == '\n') {
+					isSeparatorDue = hasRecord;
+					cbuf[off + n++] = c;
+				} else if (c == ' ' || c == '\r' || c == '\t') {
+					cbuf[off + n++] = c;
+				} else {
+					hasRecord = true;
+
+					if (isSeparatorDue) {
+						isSeparatorDue = false;
+						cbuf[off + n++] = ',';
+						pending = c;
+					} else {
+						cbuf[off + n++] = c;
+					}
+				}
+			}
+
+			return (n == 0) ? -1 : n;
+		}
+
+		private final char[] buf = new char[8192];
+		private boolean hasRecord;
+		private final Reader in;
+		private boolean isEnded;
+		private boolean isSeparatorDue;
+		private boolean isStarted;
+		private int limit;
+		private char pending;
+		private int pos;
+	}
+
+	private static class BinaryDecoder extends Decoder {
+		public BinaryDecoder(final InputStream i) {
+			in = i;
+		}
+
+		@Override
+		public Fact next() throws IOException {
+			final int b = in.read();
+
+			if (b == -1) {
+				return null;
+			}
+
+			final int len = (int)readVarLong(b);
+
+			if (len > buf.length) {
+				buf = new byte[Math.max(len, buf.length * 2)];
+			}
+
+			readFully(buf, 0, len);
+			readFully(crcBuf, 0, 4);
+
+			crc.reset();
+			crc.update(buf, 0, len);
+
+			final long c =
+				((crcBuf[0] & 0xffL) << 24) |
+				((crcBuf[1] & 0xffL) << 16) |
+				((crcBuf[2] & 0xffL) << 8) |
+				(crcBuf[3] & 0xffL);
+
+			if (c != crc.getValue()) {
+				throw new IOException("Corrupt log record");
+			}
+
+			pos = 0;
+			final int flags = buf[pos++];
+			isDeleted = (flags & Binary.DELETED) != 0;
+
+			final long ca = readVarLong();
+			final int v = (int)readVarLong();
+			final String k = readKey();
+
+			Fact pv = null;
+
+			if ((flags & Binary.PREVIOUS) != 0) {
+				final long pca = readVarLong();
+				final int pvv = (int)readVarLong();
+				pv = new Fact(readKey(), toInstant(pca), null, pvv);
+			}
+
+			return new Fact(k, toInstant(ca), pv, v);
+		}
+
+		private byte[] buf = new byte[256];
+		private final CRC32 crc = new CRC32();
+		private final byte[] crcBuf = new byte[4];
+		private final InputStream in;
+		private int pos;
+
+		private String readKey() {
+			final int len = (int)readVarLong();
+			final String res = new String(buf, pos, len, StandardCharsets.UTF_8);
+			pos += len;
+			return res;
+		}
+
+		private void readFully(final byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				final int n = in.read(b, off, len);
+
+				if (n == -1) {
+					throw new EOFException("Truncated log record");
+				}
+
+				off += n;
+				len -= n;
+			}
+		}
+
+		private long readVarLong() {
+			long res = 0;
+
+			for (int shift = 0;; shift += 7) {
+				final int b = buf[pos++];
+				res |= (long)(b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0) {
+					return res;
+				}
+			}
+		}
+
+		private long readVarLong(int b) throws IOException {
+			long res = 0;
+
+			for (int shift = 0;; shift += 7) {
+				if (b == -1) {
+					throw new EOFException("Truncated log record");
+				}
+
+				res |= (long)(b & 0x7f) << shift;
+
+				if ((b & 0x80) == 0) {
+					return res;
+				}
+
+				b = in.read();
+			}
+		}
+
+		private static Instant toInstant(final long zz) {
+			return Instant.ofEpochMilli((zz >>> 1) ^ -(zz & 1));
+		}
+	}
+
+	//Compares the streaming JSON decoder with the original one, run with a log
+	//file as argument or without to use generated records.
+	
+	public static class Bench {
+		public static void main(final String[] args) throws IOException {
+			final Context cx = new Context();
+			final JSON c = new JSON(cx);
+			final byte[] data;
+			
+			if (args.length > 0) {
+				data = Files.readAllBytes(Paths.get(args[0]));
+			} else {
+				final ByteArrayOutputStream out = new ByteArrayOutputStream();
+				
+				for (int i = 0; i < 200000; i++) {
+					Fact f = new Fact(String.format("fact %d #todo something to do", i));
+					
+					if (i % 3 == 0) {
+						f = f.clone(f.key.replace("#todo", "#done"));
+					}
+					
+					out.write(c.encode(f, (i % 5 == 0) ? Change.Type.DELETE : Change.Type.INSERT));
+				}
+				
+				data = out.toByteArray();
+			}
+			
+			for (int run = 0; run < 5; run++) {
+				time("tree", c.treeDecoder(new ByteArrayInputStream(data)));
+				time("stream", c.decoder(new ByteArrayInputStream(data)));
+			}
+		}
+		
+		private static void time(final String label, final Decoder d) throws IOException {
+			final long start = System.nanoTime();
+			int n = 0;
+			
+			while (d.next() != null) {
+				n++;
+			}
+			
+			final long ms = (System.nanoTime() - start) / 1000000;
+			System.out.printf("%s: %d records in %d ms\n", label, n, ms);
+		}
+	}
+	
+	public static class Tests {
+		@Test
+		public void testBinary() throws IOException {
+			final LogCodec c = new Binary();
+			final Fact f = new Fact("abc").clone("abc def");
+
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			out.write(c.encode(f, Change.Type.INSERT));
+			out.write(c.encode(f, Change.Type.DELETE));
+
+			final Decoder d = c.decoder(new ByteArrayInputStream(out.toByteArray()));
+
+			Fact ff = d.next();
+			assertFalse(d.isDeleted);
+			assertEquals(0, f.compareTo(ff));
+			assertEquals(2, ff.version);
+			assertEquals(0, f.previousVersion.compareTo(ff.previousVersion));
+
+			ff = d.next();
+			assertTrue(d.isDeleted);
+			assertEquals(0, f.compareTo(ff));
+
+			assertNull(d.next());
+		}
+
+		@Test
+		public void testCorrupt() {
+			final byte[] r = new Binary().encode(new Fact("abc"), Change.Type.INSERT);
+			r[r.length - 5] ^= 1;
+			
+			try {
+				new Binary().decoder(new ByteArrayInputStream(r)).next();
+				fail("Corrupt record was decoded");
+			} catch (final IOException e) {
+				assertEquals("Corrupt log record", e.getMessage());
+			}
+		}
+
+		@Test
+		public void testStream() throws IOException {
+			final Context cx = new Context();
+			final JSON c = new JSON(cx);
+			final ByteArrayOutputStream out = new ByteArrayOutputStream();
+			final Fact f = new Fact("abc \"def\"\tghi").clone("abc");
+			
+			out.write(c.encode(f, Change.Type.INSERT));
+			out.write("\n\n".getBytes(StandardCharsets.UTF_8));
+			out.write(c.encode(new Fact("def"), Change.Type.DELETE));
+			out.write("{\"key\":\"ghi\",\"createdAt\":\"\",\"extra\":{\"a\":[1,{}]}}".getBytes(StandardCharsets.UTF_8));
+			
+			final Decoder sd = c.decoder(new ByteArrayInputStream(out.toByteArray()));
+			final Decoder td = c.treeDecoder(new ByteArrayInputStream(out.toByteArray()));
+			
+			for (int i = 0; i < 3; i++) {
+				final Fact sf = sd.next();
+				final Fact tf = td.next();
+				assertEquals(0, tf.compareTo(sf));
+				assertEquals(tf.version, sf.version);
+				assertEquals(td.isDeleted, sd.isDeleted);
+				assertEquals(tf.previousVersion == null, sf.previousVersion == null);
+				
+				if (tf.previousVersion != null) {
+					assertEquals(0, tf.previousVersion.compareTo(sf.previousVersion));
+				}
+			}
+			
+			assertNull(sd.next());
+			assertNull(td.next());
+		}
+	}
+}
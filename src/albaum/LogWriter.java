@@ -0,0 +1,321 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Owns the log file and appends whatever has queued up since the last
+//write in one go (group commit). Once a write failed, appends throw the
+//error instead of queueing.
+
+public class LogWriter implements Runnable {
+	public enum Sync {NONE, BATCH, INTERVAL};
+
+	public static final int MAX_BATCH = 1024;
+
+	public final Sync sync;
+	public final long syncInterval;
+
+	public LogWriter(final Path p, final Sync s, final long si) {
+		sync = s;
+		syncInterval = si;
+
+		try {
+			channel = open(p);
+		} catch (final IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		thread = new Thread(this, "Albaum log writer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	//Queues data, the returned latch opens once its batch was written and
+	//synced as configured
+
+	public CountDownLatch append(final byte[] data) {
+		return append(data, null);
+	}
+
+	//Like append, also runs onWritten on the writer thread once the batch
+	//was written, never after a failed write
+
+	public CountDownLatch append(final byte[] data, final Runnable onWritten) {
+		check();
+		final CountDownLatch res = new CountDownLatch(1);
+		enqueue(new Record(data, res, null, onWritten));
+		return res;
+	}
+
+	//Waits for a latch returned by append, throws if the write failed
+
+	public void await(final CountDownLatch written) {
+		try {
+			written.await();
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		check();
+	}
+
+	public double averageBatchSize() {
+		final long bc = batchCount.get();
+		return (bc == 0) ? 0 : (double)recordCount.get() / bc;
+	}
+
+	public long averageLatency() {
+		final long rc = recordCount.get();
+		return (rc == 0) ? 0 : totalLatency.get() / rc;
+	}
+
+	public long batchCount() {
+		return batchCount.get();
+	}
+
+	public void close() {
+		if (!isClosed) {
+			flush();
+			isClosed = true;
+			enqueue(CLOSE);
+
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	public void flush() {
+		final CountDownLatch done = new CountDownLatch(1);
+		enqueue(new Record(null, done, null, null));
+
+		await(done);
+	}
+
+	public long maxBatchSize() {
+		return maxBatchSize.get();
+	}
+
+	public long maxLatency() {
+		return maxLatency.get();
+	}
+
+	public long recordCount() {
+		return recordCount.get();
+	}
+
+	public void roll(final Path next) {
+		enqueue(new Record(null, null, next, null));
+	}
+
+	@Override
+	public void run() {
+		final List<Record> batch = new ArrayList<>();
+		boolean isRunning = true;
+
+		while (isRunning) {
+			try {
+				final Record r = (sync == Sync.INTERVAL && isDirty)
+					? queue.poll(syncInterval, TimeUnit.MILLISECONDS)
+					: queue.take();
+
+				if (r != null) {
+					batch.add(r);
+					queue.drainTo(batch, MAX_BATCH - 1);
+				}
+			} catch (final InterruptedException e) {
+				isRunning = false;
+			}
+
+			//Anything escaping here would leave waiting committers hanging
+
+			try {
+				isRunning = write(batch) && isRunning;
+
+				for (final Record r: batch) {
+					if (r.onWritten != null) {
+						r.onWritten.run();
+					}
+				}
+			} catch (final Throwable e) {
+				error = e;
+			}
+
+			for (final Record r: batch) {
+				if (r.done != null) {
+					r.done.countDown();
+				}
+			}
+
+			batch.clear();
+		}
+
+		try {
+			channel.close();
+		} catch (final IOException e) {
+			error = e;
+		}
+	}
+
+	public long syncCount() {
+		return syncCount.get();
+	}
+
+	private static class Record {
+		public final byte[] data;
+		public final CountDownLatch done;
+		public final long enqueuedAt = System.nanoTime();
+		public final Path next;
+		public final Runnable onWritten;
+
+		public Record(final byte[] d, final CountDownLatch l, final Path n, final Runnable w) {
+			data = d;
+			done = l;
+			next = n;
+			onWritten = w;
+		}
+	}
+
+	private static final Record CLOSE = new Record(null, null, null, null);
+
+	private final AtomicLong batchCount = new AtomicLong(0);
+	private FileChannel channel;
+	private volatile Throwable error;
+	private volatile boolean isClosed;
+	private boolean isDirty;
+	private long lastSync = System.currentTimeMillis();
+	private final AtomicLong maxBatchSize = new AtomicLong(0);
+	private final AtomicLong maxLatency = new AtomicLong(0);
+	private final BlockingQueue<Record> queue = new LinkedBlockingQueue<>();
+	private final AtomicLong recordCount = new AtomicLong(0);
+	private final AtomicLong syncCount = new AtomicLong(0);
+	private final Thread thread;
+	private final AtomicLong totalLatency = new AtomicLong(0);
+
+	private void check() {
+		if (error != null) {
+			throw new RuntimeException(error);
+		}
+	}
+
+	private void enqueue(final Record r) {
+		if (isClosed && r != CLOSE) {
+			throw new IllegalStateException("Log writer is closed");
+		}
+
+		queue.add(r);
+	}
+
+	private void sync() throws IOException {
+		channel.force(false);
+		syncCount.incrementAndGet();
+		lastSync = System.currentTimeMillis();
+		isDirty = false;
+	}
+
+	private static FileChannel open(final Path p) throws IOException {
+		return FileChannel.open(p,
+			StandardOpenOption.CREATE,
+			StandardOpenOption.WRITE,
+			StandardOpenOption.APPEND);
+	}
+
+	private boolean write(final List<Record> batch) throws IOException {
+		int size = 0;
+		int count = 0;
+		boolean isRunning = true;
+
+		for (final Record r: batch) {
+			if (r == CLOSE) {
+				isRunning = false;
+			} else if (r.data != null) {
+				size += r.data.length;
+				count++;
+			}
+		}
+
+		final ByteBuffer buf = ByteBuffer.allocate(size);
+
+		for (final Record r: batch) {
+			if (r.data != null) {
+				buf.put(r.data);
+			} else if (r.next != null) {
+				write(buf);
+
+				if (isDirty && sync != Sync.NONE) {
+					sync();
+				}
+
+				channel.close();
+				channel = open(r.next);
+			}
+		}
+
+		write(buf);
+
+		if (count > 0) {
+			if (sync == Sync.BATCH) {
+				sync();
+			}
+
+			final long now = System.nanoTime();
+
+			for (final Record r: batch) {
+				if (r.data != null) {
+					final long l = now - r.enqueuedAt;
+					totalLatency.addAndGet(l);
+					maxLatency.accumulateAndGet(l, Math::max);
+				}
+			}
+
+			batchCount.incrementAndGet();
+			recordCount.addAndGet(count);
+			maxBatchSize.accumulateAndGet(count, Math::max);
+		}
+
+		if (isDirty && sync != Sync.NONE && (!isRunning ||
+			System.currentTimeMillis() - lastSync >= syncInterval)) {
+			sync();
+		}
+
+		return isRunning;
+	}
+
+	private void write(final ByteBuffer buf) throws IOException {
+		buf.flip();
+
+		if (buf.hasRemaining()) {
+			isDirty = true;
+		}
+
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+
+		buf.clear();
+	}
+}
@@ -12,6 +12,8 @@
 
 package albaum;
 
+import java.nio.file.Paths;
+
 //TODO add mac/windows jars, export & publish
 ///TODO resolve github issue
 
@@ -75,8 +77,6 @@ package albaum;
 //TODO add stemming of non-# keys
 ///TODO snowball2? other java implementations?
 
-//TODO compress log file
-
 //TODO add system password
 ///TODO store pbkdf2 hash in tree
 ///TODO add login dialog
@@ -95,6 +95,20 @@ package albaum;
 public class Main {		
 	public static void main(final String[] args) {
 		Context cx = new Context();
-		GUI.run(cx);    
+		
+		if (args.length == 4 && args[0].equals("--convert")) {
+			Log.convert(cx, 
+				Paths.get(args[2]), 
+				Paths.get(args[3]), 
+				LogCodec.Format.valueOf(args[1].toUpperCase()));
+			return;
+		}
+		
+		if (args.length == 2 && args[0].equals("--index")) {
+			GUI.run(cx, Trie.Mode.valueOf(args[1].toUpperCase()));
+			return;
+		}
+		
+		GUI.run(cx, Trie.Mode.PREFIX);    
 	}
 }
@@ -14,41 +14,76 @@ package albaum;
 
 import java.io.PrintStream;
 import java.time.Instant;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+//Nodes are path compressed, each child is keyed on the first character of
+//its edge and the edge label is the part of its key below the parent's 
+//level. Positions inside an edge are represented by transient Edge views.
+//Facts are stored as postings of ids from the trie's registry.
 
 public class Node implements Comparable<Node>, HasKey {
-	public final Map<Character, Node> childNodes = 
-		new ConcurrentSkipListMap<>();
+	public static final int SUGGEST_SIZE = 10;
+	
+	public final ChildTable childNodes;
 	public final Instant insertedAt;
 	public final String key;
 	public final int level;
-	public final Node previousNode;
+	public volatile Node previousNode;
 	public final Trie trie;
-	public final Set<Fact> facts = new ConcurrentSkipListSet<>();
 	
 	public Node(final Trie t, final Node p, final String k) {
 		trie = t;
 		previousNode = p;
-		level = (p == null) ? 0 : p.level + 1;
+		level = k.length();
 		key = k;
 		insertedAt = Instant.now();
+		childNodes = new ChildTable();
 	}
 
-	public boolean deleteFact(final Fact f, final Context cx) {
-		if (facts.contains(f)) {
-			cx.addChange(new Change.Delete(this, f));
+	public boolean addFact(final Fact f) {
+		final int id = trie.registry.bind(f);
+		
+		synchronized (this) {
+			if (postings.contains(id)) {
+				return false;
+			}
+			
+			postings = postings.add(id);
+		}
+		
+		invalidate();
+		return true;
+	}
+	
+	public boolean deleteFact(final Fact f) {
+		if (removeFact(f)) {
 			f.nodes.remove(this);
-			facts.remove(f);
 			return true;
 		}
 		
 		return false;
 	}
 
+	public void clear() {
+		synchronized (this) {
+			childNodes.clear();
+			postings = Postings.EMPTY;
+		}
+		
+		invalidate();
+	}
+	
 	public int compareScoreTo(final Node other) {
 		int res = Integer.valueOf(other.score.get())
 			.compareTo(Integer.valueOf(score.get()));
@@ -71,26 +106,48 @@ public class Node implements Comparable<Node>, HasKey {
 		return other.insertedAt.compareTo(insertedAt);
 	}
 		
-	public Node extend() {
-		Node n = this;
+	public int count() {
+		int res = 1;
 		
-		while (n.childNodes.size() == 1) {
-			n = n.childNodes.values().iterator().next();
+		for (final Node n: childNodes.values()) {
+			res += n.count();
 		}
 		
-		if (n.getFirstFact() == null) {
-			return this;
-		}
+		return res;
+	}
 		
-		return n;
+	public Node extend() {
+		return extend(this);
 	}
 
 	public Node find(final String key) {
-		Node n;
-		int i;
+		Node n = this;
+		int i = 0;
 
-		for (n = this, i = 0; i < key.length() && n != null; i++) {
-			n = n.getChild(key.charAt(i));
+		while (i < key.length()) {
+			final Node cn = n.childNodes.get(Character.toLowerCase(key.charAt(i)));
+			
+			if (cn == null) {
+				return null;
+			}
+			
+			int p = n.level + 1;
+			i++;
+			
+			while (p < cn.level && i < key.length()) {
+				if (Character.toLowerCase(cn.key.charAt(p)) != Character.toLowerCase(key.charAt(i))) {
+					return null;
+				}
+				
+				p++;
+				i++;
+			}
+			
+			if (p < cn.level) {
+				return at(cn, p);
+			}
+			
+			n = cn;
 		}
 		
 		return n;
@@ -110,67 +167,36 @@ public class Node implements Comparable<Node>, HasKey {
 			: null;
 	}
 	
-	private void findEndNodes(final String key, final int minMatch, final Set<Node> res) {	
-		Node n = this;
-		int i = 0;
-		String k = key;
-		
-		while (i < k.length()) {
-			char c = k.charAt(i);
-			if (n != null && n.hasChild(c)) {
-				n = n.getChild(c);				
-				i++;
-			} else {				
-				if (n.level >= minMatch) {
-					res.add(n);
-				}
-				
-				while (i > 0 && !Key.SPLIT.contains(k.charAt(i))) { 
-					i--;					
-					n = n.previousNode;
-				}
-
-				i++;				
-				
-				if (n != this) {
-					findEndNodes(k.substring(i), minMatch, res);
-				}
-				
-				while (i < k.length() && !Key.SPLIT.contains(k.charAt(i))) { 
-					i++; 
-				}
-				
-				while (i < k.length() && Key.SPLIT.contains(k.charAt(i))) { 
-					i++; 
-				}
-				
-				if (i < k.length()) {
-					k = k.substring(i);
-					i = 0;
-
-					findEndNodes(k.substring(i), minMatch, res);						
-				}
-			}
-		}
-		
-		if (n.level >= minMatch) {
-			res.add(n);
-		}
+	public Set<Node> findEndNodes(final String key, final int minMatch) {
+		return findEndNodes(key, minMatch, Cancellation.NONE);
 	}
 	
-	public Set<Node> findEndNodes(final String key, final int minMatch) {
-		final Set<Node> res = new ConcurrentSkipListSet<>();
-		findEndNodes(key, minMatch, res);
-		return res;
+	public Set<Node> findEndNodes(final String key, final int minMatch, final Cancellation c) {
+		return new EndNodeWalk(this, minMatch).extend(key, c).nodes();
 	}
 	
 	public Fact findFact(final Fact t) {
-		for (final Fact tt: facts) {
-			if (tt.compareTo(t) == 0) {
-				return tt;
-			}
+		final int id = trie.registry.find(t);
+		return (id != -1 && postings.contains(id)) ? trie.registry.get(id) : null;
+	}
+	
+	public int factCount() {
+		return postings.size;
+	}
+	
+	//Facts stored in this node in fact order
+	
+	public Set<Fact> facts() {
+		final Set<Fact> res = new TreeSet<>();
+		final Postings ps = postings;
+		
+		if (ps.size > 0) {
+			final BitSet ids = new BitSet();
+			ps.addTo(ids);
+			trie.registry.get(ids, res);
 		}
-		return null;
+		
+		return res;
 	}
 	
 	@Override
@@ -178,23 +204,85 @@ public class Node implements Comparable<Node>, HasKey {
 		return key;
 	}
 
-	public void updateScore(final String k) {
-		score.set(facts.size() * (1 + Key.score(key,  k)));
+	public Key.Signature signature() {
+		Key.Signature res = signature;
+		
+		if (res == null) {
+			res = signature = new Key.Signature(key);
+		}
+		
+		return res;
+	}
+	
+	public void updateScore(final int overlap, final Key.Signature k) {
+		score.set(overlap * (1 + Key.score(signature(),  k)));
 	}
 
-	public void updateScore(final String k, final Set<Node> ns) {
-		score.set(ns
+	//Number of facts each node shares with the other nodes, counting how
+	//many nodes hold each fact in one pass over the subtrees.
+	
+	public static int[] overlaps(final List<Node> ns) {
+		return overlaps(ns, Cancellation.NONE);
+	}
+	
+	public static int[] overlaps(final List<Node> ns, final Cancellation c) {
+		return countOverlaps(ns
 			.parallelStream()
-			.map((n) -> {
-				if (n == this) {
-					return 0;
-				} else {
-					final Set<Fact> fs = getAllFacts();
-					fs.retainAll(n.getAllFacts());					
-					return fs.size();
-				}
-			})
-			.reduce(0, (a, b) -> a + b) * (1 + Key.score(key,  k)));
+			.map((n) -> n.getAllIds(new BitSet(), c))
+			.collect(Collectors.toList()), c);
+	}
+	
+	//Number of ids each set shares with the other sets
+	
+	public static int[] countOverlaps(final List<BitSet> ids, final Cancellation c) {
+		int size = 0;
+		
+		for (final BitSet is: ids) {
+			size = Math.max(size, is.length());
+		}
+		
+		final int[] counts = new int[size];
+		
+		for (final BitSet is: ids) {
+			c.check();
+			
+			for (int i = is.nextSetBit(0); i >= 0; i = is.nextSetBit(i + 1)) {
+				counts[i]++;
+			}
+		}
+		
+		final int[] res = new int[ids.size()];
+		
+		IntStream.range(0, ids.size()).parallel().forEach((i) -> {
+			c.check();
+			final BitSet is = ids.get(i);
+			
+			for (int j = is.nextSetBit(0); j >= 0; j = is.nextSetBit(j + 1)) {
+				res[i] += counts[j] - 1;
+			}
+		});
+		
+		return res;
+	}
+	
+	public static void updateScores(final Key.Signature k, final Collection<Node> ns) {
+		updateScores(k, ns, Cancellation.NONE);
+	}
+	
+	public static void updateScores(final Key.Signature k, final Collection<Node> ns, 
+			final Cancellation c) {
+		final List<Node> nl = new ArrayList<>(ns);
+		final int[] os = overlaps(nl, c);
+		
+		for (int i = 0; i < os.length; i++) {
+			nl.get(i).updateScore(os[i], k);
+		}
+	}
+	
+	//Bumped whenever a fact or node below this one changes
+	
+	public int version() {
+		return version;
 	}
 		
 	public Set<Node> getAll() {
@@ -202,8 +290,23 @@ public class Node implements Comparable<Node>, HasKey {
 	}
 		
 	public Set<Fact> getAllFacts(final Set<Fact> res) {
-		res.addAll(facts);
-		childNodes.values().parallelStream().forEach((n) -> n.getAllFacts(res));
+		return trie.registry.get(getAllIds(new BitSet()), res);
+	}
+	
+	//Number of facts in this subtree
+	
+	public int getAllCount() {
+		return allIds(Cancellation.NONE).size;
+	}
+	
+	//Collects the ids of all facts in this subtree into res
+	
+	public BitSet getAllIds(final BitSet res) {
+		return getAllIds(res, Cancellation.NONE);
+	}
+	
+	public BitSet getAllIds(final BitSet res, final Cancellation c) {
+		allIds(c).addTo(res);
 		return res;
 	}
 	
@@ -212,38 +315,50 @@ public class Node implements Comparable<Node>, HasKey {
 	}
 
 	public Node getChild(final char c) {
-		return childNodes.get(Character.toLowerCase(c));
+		final Node cn = childNodes.get(Character.toLowerCase(c));
+		return (cn == null) ? null : at(cn, level + 1);
+	}
+	
+	//Smallest fact at the first node in key order below this one that has
+	//any, cached until something below changes
+	
+	//First fact stored here whose key is this node's key, ignoring case
+	
+	public Fact getExactFact() {
+		return completion().exact;
 	}
 	
 	public Fact getFirstFact() {
-		if (!facts.isEmpty()) {
-			return facts.iterator().next();
-		}
-		
-		for (final Node n: childNodes.values()) {
-			Fact res = n.getFirstFact();
-			
-			if (res != null) {
-				return res;
-			}
-		}
-		
-		return null;
+		return completion().first;
 	}
 
 	public boolean hasChild(final char c) {
 		return childNodes.containsKey(Character.toLowerCase(c));
 	}
 
-	public void insertChild(final char c, final Node n) {
-		childNodes.put(Character.toLowerCase(c), n);
+	//Adds a leaf for k below this node, unless another thread got there
+	//first; returns whichever child now starts with the next character.
+	
+	public Node insertChild(final CharSequence k) {
+		final char c = Character.toLowerCase(k.charAt(level));
+		
+		synchronized (this) {
+			final Node cn = childNodes.get(c);
+			
+			if (cn != null) {
+				return cn;
+			}
+			
+			final Node n = new Node(trie, this, k.toString());
+			childNodes.put(c, n);
+			invalidate();
+			return n;
+		}
 	}	
 
-	public boolean insertFact(final Fact f, final Context cx) {
-		if (!facts.contains(f)) {
-			cx.addChange(new Change.Insert(this, f));
+	public boolean insertFact(final Fact f) {
+		if (addFact(f)) {
 			f.nodes.add(this);
-			facts.add(f);
 			return true;
 		}
 		
@@ -251,27 +366,367 @@ public class Node implements Comparable<Node>, HasKey {
 	}
 
 	public void print(final PrintStream out, int level) {
-		for (Map.Entry<Character, Node> e: childNodes.entrySet()) {
+		for (final Node n: childNodes.values()) {
 			for (int i = 0; i < level; i++) {
 				out.write('-');
 			}
-			out.write(e.getKey());
+			out.print(n.key.substring(this.level));
 			out.printf(" (%d/%d)", 
-					e.getValue().childNodes.size(), 
-					e.getValue().facts.size());
+					n.childNodes.size(), 
+					n.factCount());
 			out.write('\n');
-			e.getValue().print(out, level + 1);
+			n.print(out, level + 1);
 		}
 	}
 	
+	public boolean removeFact(final Fact f) {
+		final int id = trie.registry.find(f);
+		
+		if (id == -1) {
+			return false;
+		}
+		
+		synchronized (this) {
+			if (!postings.contains(id)) {
+				return false;
+			}
+			
+			postings = postings.remove(id);
+		}
+		
+		invalidate();
+		return true;
+	}
+	
 	public int score() {
 		return score.get();
 	}
 	
+	//Splits the edge to child cn at level l, returns the new node or null
+	//if cn was replaced concurrently.
+	
+	public Node splitChild(final Node cn, final int l) {
+		final char c = Character.toLowerCase(cn.key.charAt(level));
+		
+		synchronized (this) {
+			if (childNodes.get(c) != cn) {
+				return null;
+			}
+			
+			final Node n = new Node(trie, this, cn.key.substring(0, l));
+			n.childNodes.put(Character.toLowerCase(cn.key.charAt(l)), cn);
+			cn.previousNode = n;
+			childNodes.put(c, n);
+			invalidate();
+			return n;
+		}
+	}
+	
+	//Up to SUGGEST_SIZE nodes below this one holding facts, most facts first,
+	//merged from the children's cached suggestions.
+	
+	public List<Node> suggest() {
+		final Ranking r = ranking();
+		final List<Node> res = new ArrayList<>(r.nodes.length);
+		
+		for (final Ranking.Entry e: r.nodes) {
+			res.add(e.node);
+		}
+		
+		return res;
+	}
+	
+	public Node up() {
+		return (level == 0) ? null : at(this, level - 1);
+	}
+	
+	private static class Edge extends Node {
+		public final Node target;
+		
+		public Edge(final Node t, final int l) {
+			super(t, l);
+			target = t;
+		}
+		
+		@Override
+		public boolean equals(final Object other) {
+			return other instanceof Edge && 
+				((Edge)other).target == target && 
+				((Edge)other).level == level;
+		}
+		
+		@Override
+		public Node extend() {
+			return extend(target);
+		}
+		
+		@Override
+		public Node find(final String key) {
+			Node n;
+			int i;
+
+			for (n = this, i = 0; i < key.length() && n != null; i++) {
+				n = n.getChild(key.charAt(i));
+			}
+			
+			return n;
+		}
+		
+		@Override
+		public Set<Fact> getAllFacts(final Set<Fact> res) {
+			return target.getAllFacts(res);
+		}
+		
+		@Override
+		public int getAllCount() {
+			return target.getAllCount();
+		}
+		
+		@Override
+		public BitSet getAllIds(final BitSet res, final Cancellation c) {
+			return target.getAllIds(res, c);
+		}
+		
+		@Override
+		public Node getChild(final char c) {
+			return hasChild(c) ? at(target, level + 1) : null;
+		}
+
+		@Override
+		public Fact getFirstFact() {
+			return target.getFirstFact();
+		}
+
+		@Override
+		public boolean hasChild(final char c) {
+			return Character.toLowerCase(target.key.charAt(level)) == Character.toLowerCase(c);
+		}
+		
+		@Override
+		public int hashCode() {
+			return target.hashCode() * 31 + level;
+		}
+		
+		@Override
+		public List<Node> suggest() {
+			return target.suggest();
+		}
+		
+		@Override
+		public Node up() {
+			return at(target, level - 1);
+		}
+		
+		@Override
+		protected Set<Node> getAll(final Set<Node> res) {
+			return target.getAll(res);
+		}
+	}
+	
+	private volatile Aggregate aggregate;
+	private volatile Completion completion;
+	private volatile Postings postings = Postings.EMPTY;
+	private volatile Ranking ranking;
 	private final AtomicInteger score = new AtomicInteger(0);
+	private volatile Key.Signature signature;
+	private volatile int version;
+	
+	private static final AtomicIntegerFieldUpdater<Node> VERSION = 
+		AtomicIntegerFieldUpdater.newUpdater(Node.class, "version");
+	
+	//End of the single child chain starting here, first fact below and
+	//first fact here with the node's key, as of version
+	
+	private static class Completion {
+		public final Node end;
+		public final Fact exact;
+		public final Fact first;
+		public final int version;
+		
+		public Completion(final int v, final Node e, final Fact f, final Fact x) {
+			version = v;
+			end = e;
+			first = f;
+			exact = x;
+		}
+	}
+	
+	//Best nodes below as of version, with their fact counts at the time
+	
+	private static class Ranking {
+		public static class Entry {
+			public final int count;
+			public final Node node;
+			
+			public Entry(final Node n, final int c) {
+				node = n;
+				count = c;
+			}
+		}
+		
+		public final Entry[] nodes;
+		public final int version;
+		
+		public Ranking(final int v, final Entry[] ns) {
+			version = v;
+			nodes = ns;
+		}
+	}
+	
+	//Subtree ids as of version, only kept on nodes that were asked for them
+	
+	private static class Aggregate {
+		public final Postings ids;
+		public final int version;
+		
+		public Aggregate(final int v, final Postings is) {
+			version = v;
+			ids = is;
+		}
+	}
+	
+	private Node(final Node t, final int l) {
+		trie = t.trie;
+		previousNode = null;
+		level = l;
+		key = t.key.substring(0, l);
+		insertedAt = t.insertedAt;
+		childNodes = ChildTable.EMPTY;
+	}
+	
+	private Postings allIds(final Cancellation c) {
+		final int v = version;
+		final Aggregate a = aggregate;
+		
+		if (a != null && a.version == v) {
+			return a.ids;
+		}
+		
+		final BitSet ids = new BitSet();
+		collectIds(ids, c);
+		final Postings res = Postings.of(ids.stream().toArray());
+		aggregate = new Aggregate(v, res);
+		return res;
+	}
+	
+	private Completion completion() {
+		final int v = version;
+		final Completion c = completion;
+		
+		if (c != null && c.version == v) {
+			return c;
+		}
+		
+		final List<Node> cns = childNodes.values();
+		final Node end = (cns.size() == 1) ? cns.get(0).completion().end : this;
+		Fact first = null;
+		Fact exact = null;
+		
+		for (final int id: postings.toArray()) {
+			final Fact f = trie.registry.get(id);
+			
+			if (first == null || f.compareTo(first) < 0) {
+				first = f;
+			}
+			
+			if (f.key.compareToIgnoreCase(key) == 0 && (exact == null || f.compareTo(exact) < 0)) {
+				exact = f;
+			}
+		}
+		
+		for (int i = 0; first == null && i < cns.size(); i++) {
+			first = cns.get(i).completion().first;
+		}
+		
+		final Completion res = new Completion(v, end, first, exact);
+		completion = res;
+		return res;
+	}
+	
+	private Ranking ranking() {
+		final int v = version;
+		final Ranking r = ranking;
+		
+		if (r != null && r.version == v) {
+			return r;
+		}
+		
+		final List<Ranking.Entry> es = new ArrayList<>();
+		final int s = postings.size;
+		
+		if (s > 0) {
+			es.add(new Ranking.Entry(this, s));
+		}
+		
+		for (final Node n: childNodes.values()) {
+			es.addAll(Arrays.asList(n.ranking().nodes));
+		}
+		
+		es.sort((a, b) -> (a.count != b.count) 
+			? Integer.compare(b.count, a.count) 
+			: a.node.key.compareTo(b.node.key));
+		
+		final Ranking res = new Ranking(v, es
+			.subList(0, Math.min(SUGGEST_SIZE, es.size()))
+			.toArray(new Ranking.Entry[0]));
+		
+		ranking = res;
+		return res;
+	}
+	
+	//Uses cached aggregates below this node where they are still valid
+	
+	private void collectIds(final BitSet res, final Cancellation c) {
+		c.check();
+		postings.addTo(res);
+		
+		for (final Node n: childNodes.values()) {
+			final Aggregate a = n.aggregate;
+			
+			if (a != null && a.version == n.version) {
+				a.ids.addTo(res);
+			} else {
+				n.collectIds(res, c);
+			}
+		}
+	}
+	
+	//Bumps the version of every node on the path to the root, which stales
+	//their cached aggregates and completions; a concurrent computation
+	//that started before the bump is stamped with the old version.
+	
+	private void invalidate() {
+		for (Node n = this; n != null; n = n.previousNode) {
+			VERSION.incrementAndGet(n);
+		}
+	}
+	
+	//Returns the node at level l on the path to n, which is either an
+	//ancestor of n or a view into the edge leading to one.
+	
+	private static Node at(final Node n, final int l) {
+		Node t = n;
+		Node p;
+		
+		while ((p = t.previousNode) != null && p.level >= l) {
+			t = p;
+		}
+		
+		return (t.level == l) ? t : new Edge(t, l);
+	}
+	
+	protected Node extend(final Node start) {
+		final Node n = start.completion().end;
+		
+		if (n.getFirstFact() == null) {
+			return this;
+		}
+		
+		return n;
+	}
 	
-	private Set<Node> getAll(final Set<Node> res) {
-		if (!facts.isEmpty()) {
+	protected Set<Node> getAll(final Set<Node> res) {
+		if (postings.size > 0) {
 			res.add(this);
 		}
 		
@@ -0,0 +1,250 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import org.junit.Test;
+
+//Sorted fact ids stored as varint deltas. Postings are immutable, add and
+//remove return new instances. Appending a larger id reuses spare room in
+//the buffer as long as nobody appended to it since, which keeps the common
+//case of increasing ids from copying.
+
+public final class Postings {
+	public static final Postings EMPTY = new Postings(new Buffer(new byte[0]), 0, 0, -1);
+
+	public final int size;
+
+	public Postings add(final int id) {
+		if (id > last) {
+			final int d = (size == 0) ? id : id - last;
+			final int n = varintSize(d);
+
+			synchronized (buffer) {
+				if (buffer.used == length && length + n <= buffer.data.length) {
+					putVarint(buffer.data, length, d);
+					buffer.used = length + n;
+					return new Postings(buffer, length + n, size + 1, id);
+				}
+			}
+
+			final byte[] data = Arrays.copyOf(buffer.data, Math.max((length + n) * 3 / 2, 8));
+			putVarint(data, length, d);
+			final Buffer b = new Buffer(data);
+			b.used = length + n;
+			return new Postings(b, length + n, size + 1, id);
+		}
+
+		final int[] ids = toArray();
+		final int i = Arrays.binarySearch(ids, id);
+
+		if (i >= 0) {
+			return this;
+		}
+
+		final int[] res = new int[ids.length + 1];
+		System.arraycopy(ids, 0, res, 0, -i - 1);
+		res[-i - 1] = id;
+		System.arraycopy(ids, -i - 1, res, -i, ids.length + i + 1);
+		return of(res);
+	}
+
+	public void addTo(final BitSet res) {
+		int id = 0;
+
+		for (int i = 0, p = 0; i < size; i++) {
+			int d = 0;
+			int s = 0;
+			byte b;
+
+			do {
+				b = buffer.data[p++];
+				d |= (b & 0x7f) << s;
+				s += 7;
+			} while (b < 0);
+
+			id += d;
+			res.set(id);
+		}
+	}
+
+	public boolean contains(final int id) {
+		if (id > last || size == 0) {
+			return false;
+		}
+
+		int v = 0;
+
+		for (int i = 0, p = 0; i < size && v <= id; i++) {
+			int d = 0;
+			int s = 0;
+			byte b;
+
+			do {
+				b = buffer.data[p++];
+				d |= (b & 0x7f) << s;
+				s += 7;
+			} while (b < 0);
+
+			v += d;
+
+			if (v == id) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	public static Postings of(final int...ids) {
+		int n = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			n += varintSize((i == 0) ? ids[i] : ids[i] - ids[i - 1]);
+		}
+
+		final byte[] data = new byte[n];
+		int p = 0;
+
+		for (int i = 0; i < ids.length; i++) {
+			p = putVarint(data, p, (i == 0) ? ids[i] : ids[i] - ids[i - 1]);
+		}
+
+		final Buffer b = new Buffer(data);
+		b.used = n;
+		return new Postings(b, n, ids.length, (ids.length == 0) ? -1 : ids[ids.length - 1]);
+	}
+
+	public Postings remove(final int id) {
+		if (!contains(id)) {
+			return this;
+		}
+
+		final int[] ids = toArray();
+		final int i = Arrays.binarySearch(ids, id);
+		final int[] res = new int[ids.length - 1];
+		System.arraycopy(ids, 0, res, 0, i);
+		System.arraycopy(ids, i + 1, res, i, ids.length - i - 1);
+		return (res.length == 0) ? EMPTY : of(res);
+	}
+
+	public int[] toArray() {
+		final int[] res = new int[size];
+		int id = 0;
+
+		for (int i = 0, p = 0; i < size; i++) {
+			int d = 0;
+			int s = 0;
+			byte b;
+
+			do {
+				b = buffer.data[p++];
+				d |= (b & 0x7f) << s;
+				s += 7;
+			} while (b < 0);
+
+			id += d;
+			res[i] = id;
+		}
+
+		return res;
+	}
+
+	private static class Buffer {
+		public final byte[] data;
+		public int used;
+
+		public Buffer(final byte[] d) {
+			data = d;
+		}
+	}
+
+	private final Buffer buffer;
+	private final int last;
+	private final int length;
+
+	private Postings(final Buffer b, final int l, final int s, final int lst) {
+		buffer = b;
+		length = l;
+		size = s;
+		last = lst;
+	}
+
+	private static int putVarint(final byte[] data, int p, int v) {
+		while ((v & ~0x7f) != 0) {
+			data[p++] = (byte)((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+
+		data[p++] = (byte)v;
+		return p;
+	}
+
+	private static int varintSize(int v) {
+		int res = 1;
+
+		while ((v & ~0x7f) != 0) {
+			v >>>= 7;
+			res++;
+		}
+
+		return res;
+	}
+
+	public static class Tests {
+		@Test
+		public void testAdd() {
+			Postings p = Postings.EMPTY;
+
+			for (final int id: new int[] {3, 200, 70000, 5, 0, 200}) {
+				p = p.add(id);
+			}
+
+			assertArrayEquals(new int[] {0, 3, 5, 200, 70000}, p.toArray());
+			assertTrue(p.contains(70000));
+			assertFalse(p.contains(4));
+
+			final BitSet bs = new BitSet();
+			p.addTo(bs);
+			assertEquals(5, bs.cardinality());
+			assertTrue(bs.get(200));
+		}
+
+		@Test
+		public void testRemove() {
+			final Postings p = Postings.of(1, 2, 300);
+			final Postings p2 = p.remove(2);
+			assertArrayEquals(new int[] {1, 300}, p2.toArray());
+			assertArrayEquals(new int[] {1, 2, 300}, p.toArray());
+			assertSame(p, p.remove(4));
+			assertSame(Postings.EMPTY, p2.remove(1).remove(300));
+		}
+
+		@Test
+		public void testShared() {
+			final Postings p = Postings.EMPTY.add(1).add(2);
+			final Postings p1 = p.add(3);
+			final Postings p2 = p.add(4);
+			assertArrayEquals(new int[] {1, 2, 3}, p1.toArray());
+			assertArrayEquals(new int[] {1, 2, 4}, p2.toArray());
+		}
+	}
+}
@@ -0,0 +1,237 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+
+import org.junit.Test;
+
+//Search session over a trie that returns what Trie.findAll would, along
+//with what changed since the previous update. Results go through the
+//trie's result cache, so retyping a key the trie has seen is a lookup.
+//While the trie doesn't change, a key that extends the last one searched
+//resumes that search's walk instead of starting from the root, and a
+//search that ends at the same nodes keeps their overlap counts, so only
+//the key part of their scores is redone. After the trie changed, all
+//results count as added.
+
+public class Query {
+	public final int minMatch;
+	public final Trie trie;
+
+	public Query(final Trie t, final int mm) {
+		trie = t;
+		minMatch = mm;
+		walk = new EndNodeWalk(t.root, mm);
+		t.registry.register(this);
+	}
+
+	public Set<Fact> added() {
+		return trie.registry.get(added, new TreeSet<>());
+	}
+
+	public boolean contains(final Fact f) {
+		final int id = trie.registry.find(f);
+		return id != -1 && ids.get(id);
+	}
+
+	public Set<Fact> facts() {
+		return trie.registry.get(ids, new TreeSet<>());
+	}
+
+	//True if id is among the results or changes the session reports
+
+	public boolean holds(final int id) {
+		return ids.get(id) || added.get(id) || removed.get(id);
+	}
+
+	public String key() {
+		return key;
+	}
+
+	public Set<Fact> removed() {
+		return trie.registry.get(removed, new TreeSet<>());
+	}
+
+	public boolean update(final String k) {
+		return update(k, Cancellation.NONE);
+	}
+
+	//Moves the session to k, returns false if the results didn't change.
+	//If c is cancelled midway, the session stays at the previous key.
+
+	public boolean update(final String k, final Cancellation c) {
+		final int v = trie.root.version();
+		final BitSet res;
+
+		if (k.length() < minMatch) {
+			res = new BitSet();
+		} else {
+			final BitSet[] found = new BitSet[1];
+			final Set<Fact> fs = (trie.tokens != null)
+				? trie.findAll(k, minMatch, c)
+				: trie.findAll(k, minMatch, () -> {
+					found[0] = search(k, v, c);
+					return trie.registry.get(found[0], new TreeSet<>());
+				});
+
+			if (found[0] != null) {
+				res = found[0];
+			} else {
+				res = new BitSet();
+
+				for (final Fact f: fs) {
+					final int id = trie.registry.find(f);
+
+					if (id != -1) {
+						res.set(id);
+					}
+				}
+			}
+		}
+
+		final BitSet a = (BitSet)res.clone();
+		
+		if (v == version) {
+			a.andNot(ids);
+		}
+
+		final BitSet r = (BitSet)ids.clone();
+		r.andNot(res);
+
+		//The registry checks these from other threads before reusing an id,
+		//so the new sets are only published once complete
+
+		removed = r;
+		ids = res;
+		added = a;
+		key = k;
+		version = v;
+		return !a.isEmpty() || !r.isEmpty();
+	}
+
+	//Ids of the facts below the best scoring end node for k
+
+	private BitSet search(final String k, final int v, final Cancellation c) {
+		final BitSet res = new BitSet();
+		final EndNodeWalk w = (v == endsVersion && k.startsWith(walk.key))
+			? walk.extend(k, c)
+			: new EndNodeWalk(trie.root, minMatch).extend(k, c);
+		final List<Node> es = new ArrayList<>(w.nodes());
+
+		if (v != endsVersion || !es.equals(ends)) {
+			overlaps = Node.overlaps(es, c);
+		}
+
+		walk = w;
+		ends = es;
+		endsVersion = v;
+		final Key.Signature s = new Key.Signature(k);
+		Node best = null;
+
+		for (int i = 0; i < es.size(); i++) {
+			final Node n = es.get(i);
+			n.updateScore(overlaps[i], s);
+
+			if (best == null || n.compareScoreTo(best) < 0) {
+				best = n;
+			}
+		}
+
+		if (best != null) {
+			best.getAllIds(res, c);
+		}
+
+		return res;
+	}
+
+	private volatile BitSet added = new BitSet();
+	private List<Node> ends = new ArrayList<>();
+	private int endsVersion = -1;
+	private volatile BitSet ids = new BitSet();
+	private String key = "";
+	private int[] overlaps = new int[0];
+	private volatile BitSet removed = new BitSet();
+	private int version = -1;
+	private EndNodeWalk walk;
+
+	public static class Tests {
+		@Test
+		public void testUpdate() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+
+			for (final String k: new String[] {"abc def", "abc ghi", "abd", "def abc ghi", "jkl"}) {
+				t.insertAll(new Fact(k), cx);
+			}
+
+			cx.commit();
+			final Query q = new Query(t, 2);
+
+			for (final String k: new String[] {"a", "ab", "abc", "abc ", "abc g", "abc gh", "abc ghx", 
+					"ab", "jkl"}) {
+				final Set<Fact> fs = (k.length() < 2) ? new TreeSet<>() : t.findAll(k, 2);
+				t.results.clear();
+				q.update(k);
+				assertEquals(fs, q.facts());
+			}
+
+			final long hits = t.results.hits();
+			q.update("abc");
+			q.update("jkl");
+			q.update("abc");
+			q.update("jkl");
+			assertEquals(hits + 3, t.results.hits());
+
+			assertFalse(q.update("jkl"));
+			final Fact f = new Fact("jklm");
+			t.insertAll(f, cx);
+			cx.commit();
+			assertTrue(q.update("jkl"));
+			assertTrue(q.added().contains(f));
+			assertTrue(q.contains(f));
+			assertTrue(q.removed().isEmpty());
+		}
+
+		@Test
+		public void testCancel() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			t.insertAll(new Fact("abc def"), cx);
+			cx.commit();
+
+			final Query q = new Query(t, 2);
+			q.update("abc");
+			final Cancellation c = new Cancellation();
+			c.cancel();
+
+			try {
+				q.update("def", c);
+				fail("expected cancellation");
+			} catch (final CancellationException e) {
+				assertEquals("abc", q.key());
+				assertEquals(1, q.facts().size());
+			}
+		}
+	}
+}
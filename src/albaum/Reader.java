@@ -50,15 +50,10 @@ public class Reader extends KeyText {
 		perfectMatch = null;
 
 		if (n != null) {
-			for (final Fact t: n.facts) {
-				if (t.key.compareToIgnoreCase(key) == 0) {
-					perfectMatch = t;
-					break;
-				}
-			}
+			perfectMatch = n.getExactFact();
 			
-			if (perfectMatch == null && n.facts.size() == 1) {
-				final Fact t = n.facts.iterator().next();
+			if (perfectMatch == null && n.factCount() == 1) {
+				final Fact t = n.getFirstFact();
 				if (t.key.indexOf(key) > -1) {
 					perfectMatch = t;
 				}
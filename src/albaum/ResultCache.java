@@ -0,0 +1,158 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Supplier;
+
+import org.junit.Test;
+
+//Bounded LRU cache of query results. Entries remember the epoch they were
+//computed in and only count as hits while the epoch is unchanged, so
+//callers pass a value that moves on every change to what was queried.
+//Epochs only grow, so entries from older ones are dropped on sight and
+//don't keep deleted facts around.
+
+public class ResultCache {
+	public final int capacity;
+
+	public ResultCache(final int c) {
+		capacity = c;
+	}
+
+	public void clear() {
+		synchronized (entries) {
+			entries.clear();
+			latest = Integer.MIN_VALUE;
+		}
+	}
+
+	public long evictions() {
+		synchronized (entries) {
+			return evictions;
+		}
+	}
+
+	//Returns the cached result for key if it is from epoch, otherwise the
+	//result of compute, cached under epoch
+
+	public Set<Fact> get(final String key, final int epoch, final Supplier<Set<Fact>> compute) {
+		synchronized (entries) {
+			if (epoch > latest) {
+				entries.values().removeIf((e) -> e.epoch < epoch);
+				latest = epoch;
+			}
+
+			final Entry e = entries.get(key);
+
+			if (e != null && e.epoch == epoch) {
+				hits++;
+				return e.result;
+			}
+
+			misses++;
+		}
+
+		final Set<Fact> res = Collections.unmodifiableSet(compute.get());
+
+		synchronized (entries) {
+			if (epoch >= latest) {
+				entries.put(key, new Entry(epoch, res));
+			}
+		}
+
+		return res;
+	}
+
+	public long hits() {
+		synchronized (entries) {
+			return hits;
+		}
+	}
+
+	public long misses() {
+		synchronized (entries) {
+			return misses;
+		}
+	}
+
+	public int size() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (entries) {
+			return String.format("%d entries, %d hits, %d misses, %d evictions",
+				entries.size(), hits, misses, evictions);
+		}
+	}
+
+	private static class Entry {
+		public final int epoch;
+		public final Set<Fact> result;
+
+		public Entry(final int e, final Set<Fact> r) {
+			epoch = e;
+			result = r;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, Entry> eldest) {
+			if (size() > capacity) {
+				evictions++;
+				return true;
+			}
+
+			return false;
+		}
+	};
+
+	private long evictions;
+	private long hits;
+	private int latest = Integer.MIN_VALUE;
+	private long misses;
+
+	public static class Tests {
+		@Test
+		public void testGet() {
+			final ResultCache c = new ResultCache(2);
+			final Set<Fact> abc = c.get("abc", 0, () -> new TreeSet<>());
+			assertSame(abc, c.get("abc", 0, () -> new TreeSet<>()));
+			assertEquals(1, c.hits());
+
+			c.get("abc", 1, () -> new TreeSet<>());
+			c.get("def", 1, () -> new TreeSet<>());
+			c.get("ghi", 1, () -> new TreeSet<>());
+			assertEquals(4, c.misses());
+			assertEquals(1, c.evictions());
+			assertEquals(2, c.size());
+
+			c.get("abc", 2, () -> new TreeSet<>());
+			assertEquals(1, c.size());
+		}
+	}
+}
@@ -0,0 +1,311 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.Test;
+
+//Search hits grouped by the nodes that already hold them, each group scored
+//the way the same node would score in a trie that only holds the hits.
+//Groups keep references to the indexed facts.
+
+public class ResultView {
+	public static class Group {
+		public final Set<Fact> facts = new TreeSet<>();
+		public final Node node;
+
+		public Group(final Node n) {
+			node = n;
+		}
+
+		public int score() {
+			return score;
+		}
+
+		private int score;
+	}
+
+	//Top level line of the result tree, either a single fact or a group
+	//with the facts that no earlier row shows.
+	
+	public static class Row {
+		public final List<Fact> children;
+		public final Fact fact;
+		public final Group group;
+
+		public Row(final Fact f) {
+			fact = f;
+			group = null;
+			children = new ArrayList<>();
+		}
+
+		public Row(final Group g, final List<Fact> cs) {
+			fact = null;
+			group = g;
+			children = cs;
+		}
+
+		public HasKey data() {
+			return (fact == null) ? group.node : fact;
+		}
+
+		//Whether r shows the same thing the same way
+
+		public boolean isSame(final Row r) {
+			return (fact == null)
+				? r.fact == null && group.node == r.group.node && group.score == r.group.score &&
+					children.equals(r.children)
+				: fact == r.fact;
+		}
+	}
+
+	//Edits that turn the rows of one view into those of another. Rows are
+	//matched on the fact or node they show, matched rows that keep their
+	//relative order stay put and the rest are removed and inserted again.
+
+	public static class Diff {
+		//New indices of kept rows that need to be filled in again
+		public final List<Integer> changed = new ArrayList<>();
+		//New indices, ascending
+		public final List<Integer> inserted = new ArrayList<>();
+		//Old indices, descending
+		public final List<Integer> removed = new ArrayList<>();
+	}
+
+	public final List<Group> groups;
+	public final List<Row> rows = new ArrayList<>();
+
+	public ResultView(final Collection<Fact> fs, final String key) {
+		this(fs, key, Cancellation.NONE);
+	}
+
+	public ResultView(final Collection<Fact> fs, final String key, final Cancellation c) {
+		final Map<Node, Group> gs = new HashMap<>();
+
+		for (final Fact f: fs) {
+			c.check();
+
+			for (final Node n: f.nodes) {
+				gs.computeIfAbsent(n, Group::new).facts.add(f);
+			}
+		}
+
+		final Key.Signature s = new Key.Signature(key);
+		final List<Group> res = new ArrayList<>(gs.values());
+
+		for (final Group g: res) {
+			c.check();
+			g.score = g.facts.size() * (1 + Key.score(g.node.signature(), s));
+		}
+
+		res.sort((l, r) -> (l.score != r.score)
+			? Integer.compare(r.score, l.score)
+			: l.node.compareTo(r.node));
+
+		groups = res;
+		final Map<Fact, int[]> ps = new TreeMap<>();
+
+		for (final Group g: res) {
+			final List<Fact> cs = new ArrayList<>();
+
+			for (final Fact f: g.facts) {
+				if (!ps.containsKey(f)) {
+					cs.add(f);
+				}
+			}
+
+			if (cs.size() == 1) {
+				ps.put(cs.get(0), new int[] {rows.size(), -1});
+				rows.add(new Row(cs.get(0)));
+			} else if (cs.size() > 1) {
+				for (int i = 0; i < cs.size(); i++) {
+					ps.put(cs.get(i), new int[] {rows.size(), i});
+				}
+
+				rows.add(new Row(g, cs));
+			}
+		}
+
+		positions = ps;
+	}
+
+	public Diff diff(final ResultView to) {
+		final Map<HasKey, Integer> olds = new IdentityHashMap<>();
+
+		for (int i = 0; i < rows.size(); i++) {
+			olds.put(rows.get(i).data(), i);
+		}
+
+		final int[] from = new int[to.rows.size()];
+
+		for (int j = 0; j < from.length; j++) {
+			final Integer i = olds.get(to.rows.get(j).data());
+			from[j] = (i == null) ? -1 : i;
+		}
+
+		final boolean[] isKept = increasing(from);
+		final boolean[] isOldKept = new boolean[rows.size()];
+		final Diff res = new Diff();
+
+		for (int j = 0; j < from.length; j++) {
+			if (isKept[j]) {
+				isOldKept[from[j]] = true;
+
+				if (!rows.get(from[j]).isSame(to.rows.get(j))) {
+					res.changed.add(j);
+				}
+			} else {
+				res.inserted.add(j);
+			}
+		}
+
+		for (int i = rows.size() - 1; i >= 0; i--) {
+			if (!isOldKept[i]) {
+				res.removed.add(i);
+			}
+		}
+
+		return res;
+	}
+
+	//Row and child index of f, child is -1 for single fact rows; null if
+	//f isn't shown
+
+	public int[] indexOf(final Fact f) {
+		return positions.get(f);
+	}
+
+	private final Map<Fact, int[]> positions;
+
+	//Marks a longest increasing subsequence of the non negative values in is
+
+	private static boolean[] increasing(final int[] is) {
+		final int[] tails = new int[is.length];
+		final int[] prev = new int[is.length];
+		int n = 0;
+
+		for (int j = 0; j < is.length; j++) {
+			if (is[j] < 0) {
+				continue;
+			}
+
+			int lo = 0;
+			int hi = n;
+
+			while (lo < hi) {
+				final int m = (lo + hi) >>> 1;
+
+				if (is[tails[m]] < is[j]) {
+					lo = m + 1;
+				} else {
+					hi = m;
+				}
+			}
+
+			prev[j] = (lo > 0) ? tails[lo - 1] : -1;
+			tails[lo] = j;
+			n = Math.max(n, lo + 1);
+		}
+
+		final boolean[] res = new boolean[is.length];
+
+		for (int j = (n > 0) ? tails[n - 1] : -1; j >= 0; j = prev[j]) {
+			res[j] = true;
+		}
+
+		return res;
+	}
+
+	public static class Tests {
+		@Test
+		public void testGroups() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Fact abc = new Fact("abc def");
+			final Fact abd = new Fact("abc ghi");
+			t.insertAll(abc, cx);
+			t.insertAll(abd, cx);
+			t.insertAll(new Fact("abc jkl"), cx);
+			cx.commit();
+
+			final ResultView v = new ResultView(Arrays.asList(abc, abd), "abc");
+			final Group g = v.groups.get(0);
+			assertEquals("abc ", g.node.key);
+			assertEquals(2, g.facts.size());
+			assertEquals(2 * (1 + Key.score("abc ", "abc")), g.score());
+
+			for (final Group gg: v.groups) {
+				assertTrue(gg.facts.size() <= 2);
+			}
+
+			assertEquals(1, v.rows.size());
+			assertEquals(Arrays.asList(abc, abd), v.rows.get(0).children);
+			assertEquals(1, v.indexOf(abd)[1]);
+		}
+
+		@Test
+		public void testDiff() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Fact[] fs = new Fact[5];
+
+			for (int i = 0; i < fs.length; i++) {
+				fs[i] = new Fact(String.format("abc%d def%d", i, i), Albaum.nullTime);
+				t.insertAll(fs[i], cx);
+			}
+
+			cx.commit();
+
+			final ResultView v1 = new ResultView(Arrays.asList(fs[0], fs[1], fs[2], fs[3]), "abc");
+			final ResultView v2 = new ResultView(Arrays.asList(fs[0], fs[2], fs[3], fs[4]), "abc");
+			final Diff d = v1.diff(v2);
+			final List<HasKey> ks = new ArrayList<>();
+
+			for (final Row r: v1.rows) {
+				ks.add(r.data());
+			}
+
+			for (final int i: d.removed) {
+				ks.remove(i);
+			}
+
+			for (final int j: d.inserted) {
+				ks.add(j, v2.rows.get(j).data());
+			}
+
+			assertEquals(v2.rows.size(), ks.size());
+
+			for (int j = 0; j < ks.size(); j++) {
+				assertTrue(ks.get(j) == v2.rows.get(j).data());
+			}
+
+			assertEquals(1, d.removed.size());
+			assertEquals(1, d.inserted.size());
+			assertTrue(v2.diff(v2).removed.isEmpty());
+			assertTrue(v2.diff(v2).changed.isEmpty());
+		}
+	}
+}
@@ -0,0 +1,551 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+*/
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.file.FileSystems;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+import org.junit.Test;
+
+//Inverted index from tokens to the positions they occur at, used instead of
+//inserting every Key.split combination into the trie. Tokens are the same
+//as in Key.split, lower case and including trailing delimiters; a prefix
+//matches a fact when it is a prefix of one of the keys Key.split would have
+//indexed, which is checked against the fact's tokens.
+
+public class TokenIndex {
+	public static class Match {
+		public final BitSet ids;
+		public final String key;
+
+		public Match(final String k, final BitSet is) {
+			key = k;
+			ids = is;
+		}
+	}
+
+	public TokenIndex(final Trie t) {
+		trie = t;
+	}
+
+	public void clear() {
+		docs.clear();
+		quoted.clear();
+		tokens.clear();
+	}
+
+	public void delete(final Fact f) {
+		final int id = trie.registry.find(f);
+
+		if (id != -1) {
+			delete(docKey(id, 0));
+			delete(docKey(id, 1));
+		}
+	}
+
+	public Set<Fact> findAll(final String key, final int minMatch) {
+		final List<Match> ms = findEndMatches(key, minMatch);
+		final Set<Fact> res = new ConcurrentSkipListSet<>();
+
+		if (ms.isEmpty()) {
+			return res;
+		}
+
+		final Key.Signature ks = new Key.Signature(key);
+		final List<BitSet> ids = new ArrayList<>();
+
+		for (final Match m: ms) {
+			ids.add(m.ids);
+		}
+
+		final int[] os = Node.countOverlaps(ids, Cancellation.NONE);
+		Match best = null;
+		int bestScore = -1;
+
+		for (int i = 0; i < ms.size(); i++) {
+			final Match m = ms.get(i);
+			final int s = os[i] * (1 + Key.score(new Key.Signature(m.key), ks));
+
+			if (s > bestScore || (s == bestScore && m.key.compareToIgnoreCase(best.key) < 0)) {
+				best = m;
+				bestScore = s;
+			}
+		}
+
+		return trie.registry.get(best.ids, res);
+	}
+
+	//Longest matching prefixes of key starting at token boundaries,
+	//restarting after each mismatch the way Node.findEndNodes does.
+
+	public List<Match> findEndMatches(final String key, final int minMatch) {
+		final String q = key.toLowerCase();
+		final List<Match> res = new ArrayList<>();
+		final Set<String> found = new HashSet<>();
+		final BitSet visited = new BitSet();
+		final List<Integer> starts = new ArrayList<>();
+		starts.add(0);
+
+		while (!starts.isEmpty()) {
+			final int s = starts.remove(starts.size() - 1);
+
+			if (s >= q.length() || visited.get(s)) {
+				continue;
+			}
+
+			visited.set(s);
+			final Match m = longest(key, q, s);
+			final int l = (m == null) ? 0 : m.key.length();
+
+			if (l >= minMatch && found.add(m.key.toLowerCase())) {
+				res.add(m);
+			}
+
+			if (s + l == q.length()) {
+				continue;
+			}
+
+			int i = s + l;
+
+			while (i > s && !Key.isSplit(q.charAt(i))) {
+				i--;
+			}
+
+			if (i > s) {
+				starts.add(i + 1);
+			}
+
+			i = s + l;
+
+			while (i < q.length() && !Key.isSplit(q.charAt(i))) {
+				i++;
+			}
+
+			while (i < q.length() && Key.isSplit(q.charAt(i))) {
+				i++;
+			}
+
+			starts.add(i);
+		}
+
+		return res;
+	}
+
+	public void insert(final String k, final Fact f) {
+		final int id = trie.registry.bind(f);
+		final long dk = docKey(id, k.equals(f.key) ? 0 : 1);
+		final Doc d = new Doc(id, k.toLowerCase(), tokens(k.toLowerCase()));
+
+		if (docs.putIfAbsent(dk, d) != null) {
+			return;
+		}
+
+		for (int i = 0; i < d.tokens.length; i++) {
+			add(tokens, d.tokens[i], occurrence(dk, i));
+		}
+
+		if (d.key.startsWith("\"")) {
+			add(quoted, d.key, occurrence(dk, 0));
+		}
+	}
+
+	public int size() {
+		int res = 0;
+
+		for (final Occurrences os: tokens.values()) {
+			res += os.size();
+		}
+
+		return res;
+	}
+
+	//Tokens as Key.split produces them, quoted runs are single tokens
+
+	public static String[] tokens(final String key) {
+		final String u = Key.unquote(key);
+		final List<String> res = new ArrayList<>();
+		Key.tokens(key, (start, end) -> res.add(u.substring(start, end)));
+		return res.toArray(new String[res.size()]);
+	}
+
+	private static class Doc {
+		public final int id;
+		public final String key;
+		public final String[] tokens;
+
+		public Doc(final int i, final String k, final String[] ts) {
+			id = i;
+			key = k;
+			tokens = ts;
+		}
+
+		//Length of the longest prefix of q from s that is a prefix of one
+		//of the keys starting at token p.
+
+		public int match(final String q, final int s, final int p) {
+			int res;
+
+			//The full key is only indexed as written, quotes included
+
+			if (p == 0) {
+				res = Math.max(lcp(q, s, key, 0), match(q, s, 0, tokens.length - 1));
+			} else {
+				res = match(q, s, p, tokens.length);
+			}
+
+			if (q.startsWith(tokens[p], s)) {
+				final int l = tokens[p].length();
+
+				for (int j = p + 2; j < tokens.length; j++) {
+					res = Math.max(res, l + match(q, s + l, j, tokens.length));
+				}
+			}
+
+			return res;
+		}
+
+		private int match(final String q, final int s, final int p, final int end) {
+			int res = 0;
+
+			for (int i = p; i < end; i++) {
+				final int n = lcp(q, s + res, tokens[i], 0);
+				res += n;
+
+				if (n < tokens[i].length()) {
+					break;
+				}
+			}
+
+			return res;
+		}
+	}
+
+	//Once emptied by remove, occurrences are dropped from tokens and refuse
+	//further adds
+
+	private static class Occurrences {
+		public synchronized boolean add(final long o) {
+			if (isRemoved) {
+				return false;
+			}
+
+			if (size == items.length) {
+				items = Arrays.copyOf(items, size * 2);
+			}
+
+			items[size++] = o;
+			return true;
+		}
+
+		public synchronized boolean remove(final long dk) {
+			int j = 0;
+
+			for (int i = 0; i < size; i++) {
+				if ((items[i] >>> POSITION_BITS) != dk) {
+					items[j++] = items[i];
+				}
+			}
+
+			size = j;
+			isRemoved = size == 0;
+			return isRemoved;
+		}
+
+		public synchronized int size() {
+			return size;
+		}
+
+		public synchronized long[] toArray() {
+			return Arrays.copyOf(items, size);
+		}
+
+		private boolean isRemoved;
+		private long[] items = new long[2];
+		private int size;
+	}
+
+	private static final int POSITION_BITS = 20;
+
+	private final Map<Long, Doc> docs = new ConcurrentHashMap<>();
+	private final ConcurrentSkipListMap<String, Occurrences> quoted = new ConcurrentSkipListMap<>();
+	private final ConcurrentSkipListMap<String, Occurrences> tokens = new ConcurrentSkipListMap<>();
+	private final Trie trie;
+
+	private static void add(final ConcurrentSkipListMap<String, Occurrences> m, final String k, final long o) {
+		Occurrences os;
+
+		while (!(os = m.computeIfAbsent(k, (t) -> new Occurrences())).add(o)) {
+			m.remove(k, os);
+		}
+	}
+
+	private void delete(final long dk) {
+		final Doc d = docs.remove(dk);
+
+		if (d != null) {
+			for (final String t: new TreeSet<>(Arrays.asList(d.tokens))) {
+				remove(tokens, t, dk);
+			}
+
+			remove(quoted, d.key, dk);
+		}
+	}
+
+	private static void remove(final ConcurrentSkipListMap<String, Occurrences> m, final String k, final long dk) {
+		final Occurrences os = m.get(k);
+
+		if (os != null && os.remove(dk)) {
+			m.remove(k, os);
+		}
+	}
+
+	private static long docKey(final int id, final int k) {
+		return ((long)id << 1) | k;
+	}
+
+	private boolean isLive(final int id) {
+		for (final Node n: trie.registry.get(id).nodes) {
+			if (n.trie == trie) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static int lcp(final String a, final int ai, final String b, final int bi) {
+		int i = 0;
+
+		while (ai + i < a.length() && bi + i < b.length() && a.charAt(ai + i) == b.charAt(bi + i)) {
+			i++;
+		}
+
+		return i;
+	}
+
+	//Finds the longest prefix of q from s matched by any live fact, the
+	//candidates are the occurrences of tokens starting with the longest
+	//prefix of the first query token that any token starts with.
+
+	private Match longest(final String key, final String q, final int s) {
+		int e = s;
+
+		while (e < q.length() && !Key.isSplit(q.charAt(e))) {
+			e++;
+		}
+
+		while (e < q.length() && Key.isSplit(q.charAt(e))) {
+			e++;
+		}
+
+		//Quoted keys are only matched whole, their first token lacks the
+		//quote
+
+		final String u = longestPrefix(tokens, q, s, e);
+		final String qu = longestPrefix(quoted, q, s, q.length());
+
+		if (u == null && qu == null) {
+			return null;
+		}
+
+		final List<Occurrences> oss = new ArrayList<>();
+
+		if (u != null) {
+			oss.addAll(tokens.subMap(u, true, u + Character.MAX_VALUE, false).values());
+		}
+
+		if (qu != null) {
+			oss.addAll(quoted.subMap(qu, true, qu + Character.MAX_VALUE, false).values());
+		}
+
+		final Map<Integer, Integer> lens = new ConcurrentHashMap<>();
+
+		for (final Occurrences os: oss) {
+			for (final long o: os.toArray()) {
+				final Doc d = docs.get(o >>> POSITION_BITS);
+				final int p = (int)(o & ((1 << POSITION_BITS) - 1));
+
+				if (d == null || (p > 0 && p == d.tokens.length - 1)) {
+					continue;
+				}
+
+				lens.merge(d.id, d.match(q, s, p), Math::max);
+			}
+		}
+
+		int max = 0;
+
+		for (final Map.Entry<Integer, Integer> l: lens.entrySet()) {
+			if (l.getValue() > max && isLive(l.getKey())) {
+				max = l.getValue();
+			}
+		}
+
+		if (max == 0) {
+			return null;
+		}
+
+		final BitSet ids = new BitSet();
+
+		for (final Map.Entry<Integer, Integer> l: lens.entrySet()) {
+			if (l.getValue() == max && isLive(l.getKey())) {
+				ids.set(l.getKey());
+			}
+		}
+
+		return new Match(key.substring(s, s + max), ids);
+	}
+
+	//Longest prefix of q from s to at most e that some key in m starts with
+
+	private static String longestPrefix(final ConcurrentSkipListMap<String, Occurrences> m, final String q,
+			final int s, final int e) {
+		for (int l = e; l > s; l--) {
+			final String p = q.substring(s, l);
+
+			for (final Map.Entry<String, Occurrences> t: m.tailMap(p).entrySet()) {
+				if (!t.getKey().startsWith(p)) {
+					break;
+				}
+
+				if (t.getValue().size() > 0) {
+					return p;
+				}
+			}
+		}
+
+		return null;
+	}
+
+	private static long occurrence(final long dk, final int p) {
+		return (dk << POSITION_BITS) | Math.min(p, (1 << POSITION_BITS) - 1);
+	}
+
+	//Loads a log into both index modes and compares size, load time and
+	//results for the given queries.
+
+	public static class Bench {
+		public static void main(final String[] args) {
+			for (final Trie.Mode m: Trie.Mode.values()) {
+				final Context cx = new Context();
+				final Runtime rt = Runtime.getRuntime();
+				System.gc();
+				final long mem = rt.totalMemory() - rt.freeMemory();
+				final long start = System.nanoTime();
+				final Log l = Log.readOnly(cx, FileSystems.getDefault().getPath(args[0]));
+
+				try {
+					final Trie t = new Trie(l, m);
+					final long time = System.nanoTime() - start;
+					System.gc();
+
+					System.out.printf("%s: %d ms, %d nodes, %d postings, %d KB%n",
+						m,
+						time / 1000000,
+						t.root.count(),
+						(t.tokens == null) ? 0 : t.tokens.size(),
+						(rt.totalMemory() - rt.freeMemory() - mem) / 1024);
+
+					for (int i = 1; i < args.length; i++) {
+						System.out.printf("  %s: %d%n", args[i], t.findAll(args[i], Reader.MIN_INPUT_LENGTH).size());
+					}
+				} finally {
+					l.close();
+				}
+			}
+		}
+	}
+
+	public static class Tests {
+		private static void assertSame(final String q, final String...keys) {
+			final Context cx = new Context();
+			final Trie p = new Trie(null, Trie.Mode.PREFIX);
+			final Trie t = new Trie(null, Trie.Mode.TOKEN);
+
+			for (final String k: keys) {
+				final Fact f = new Fact(k);
+				p.insertAll(f, cx);
+				t.insertAll(f, cx);
+			}
+
+			cx.commit();
+
+			final Set<String> pks = new TreeSet<>();
+			final Set<String> tks = new TreeSet<>();
+			p.findAll(q, 2).forEach((f) -> pks.add(f.key));
+			t.findAll(q, 2).forEach((f) -> tks.add(f.key));
+			assertEquals(pks, tks);
+		}
+
+		@Test
+		public void testFindAll() {
+			final String[] ks = {"abc", "abc def", "def ghi abc", "def abc ghi", "jkl abc def,mno"};
+
+			for (final String q: new String[] {"abc", "abc def", "ghi", "def", "abc mno", "jkl def", "xyz abc"}) {
+				assertSame(q, ks);
+			}
+		}
+
+		@Test
+		public void testLinear() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null, Trie.Mode.TOKEN);
+			final Fact f = new Fact("a b c d e f g h i j k l m n o p");
+			t.insertAll(f, cx);
+			cx.commit();
+
+			assertEquals(16 + 3, t.tokens.size());
+			assertTrue(t.findAll("e f g", 2).contains(f));
+			assertTrue(t.findAll("e h i", 2).contains(f));
+
+			t.deleteAll(f, cx);
+			cx.commit();
+			assertEquals(0, t.tokens.size());
+			assertTrue(t.tokens.tokens.isEmpty());
+			assertTrue(t.findAll("e f g", 2).isEmpty());
+		}
+
+		@Test
+		public void testRollback() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null, Trie.Mode.TOKEN);
+			t.insertAll(new Fact("abc def"), cx);
+			cx.rollback();
+
+			assertTrue(t.tokens.docs.isEmpty());
+			assertTrue(t.tokens.tokens.isEmpty());
+			assertTrue(t.findAll("abc", 2).isEmpty());
+		}
+
+		@Test
+		public void testQuote() {
+			assertSame("abc d", "\"abc def,ghi;jkl\".mno!pqr", "abc x");
+			assertSame("mno", "\"abc def,ghi;jkl\".mno!pqr");
+			assertSame("\"abc", "\"abc def\" xyz");
+			assertSame("\"abc def\" x", "\"abc def\" xyz", "\"abc\"");
+		}
+	}
+}
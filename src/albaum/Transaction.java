@@ -0,0 +1,78 @@
+/*
+ 	This program is free software: you can redistribute it and/or modify
+    it under the terms of the GNU General Public License as published by
+    the Free Software Foundation, either version 3 of the License, or
+    (at your option) any later version.
+
+    This program is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU General Public License for more details.
+ */
+
+
+package albaum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.time.Instant;
+
+import org.junit.Test;
+
+//Changes of one operation, kept apart from those of the context it was
+//started from so concurrent operations commit and roll back independently.
+//Time formats are the parent's.
+
+public class Transaction extends Context {
+	public final Context parent;
+	
+	public Transaction(final Context p) {
+		parent = p;
+	}
+	
+	@Override
+	public String format(final Instant i) {
+		return parent.format(i);
+	}
+
+	@Override
+	public String formatJS(final Instant i) {
+		return parent.formatJS(i);
+	}
+
+	@Override
+	public void load(final Trie t) {
+		parent.load(t);
+	}
+	
+	@Override
+	public Instant parseTime(final String s) {		
+		return parent.parseTime(s);
+	}
+
+	@Override
+	public Instant parseTimeJS(final String s) {		
+		return parent.parseTimeJS(s);
+	}
+	
+	public static class Tests {
+		@Test
+		public void testIsolation() {
+			final Context cx = new Context();
+			final Trie t = new Trie(null);
+			final Transaction abc = cx.begin();
+			final Transaction def = cx.begin();
+			t.insertAll(new Fact("abc"), abc);
+			t.insertAll(new Fact("def"), def);
+			assertEquals(0, cx.changes.size());
+
+			abc.commit();
+			def.rollback();
+			assertEquals(0, abc.changes.size());
+			assertEquals(0, def.changes.size());
+			assertEquals(1, t.findAll("abc", 1).size());
+			assertNull(t.root.findFirstFact("def"));
+		}
+	}
+}
@@ -20,27 +20,48 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.function.Supplier;
 
 import org.junit.Test;
 
 public class Trie {
+	public enum Mode {PREFIX, TOKEN};
+	
 	public static Set<String> newStringSet(final String...items) {
 		final Set<String> res = new HashSet<>();
 		res.addAll(Arrays.asList(items));		
 		return res;
 	}
 		
+	public static final int RESULT_CACHE_SIZE = 256;
+	
 	public static final Set<String> SPECIALS = 
 		newStringSet("#caption", "#font", "#font-size", "#time-format");
 	
+	public final Mode mode;
+	public final FactRegistry registry = new FactRegistry();
+	public final ResultCache results = new ResultCache(RESULT_CACHE_SIZE);
 	public final Node root = new Node(this, null, "");
+	public final TokenIndex tokens;
 
 	public Trie(final Log l) {
+		this(l, Mode.PREFIX);
+	}
+
+	//In token mode only full keys go into the trie, searches use the 
+	//token index instead of Key.split combinations.
+	
+	public Trie(final Log l, final Mode m) {
+		mode = m;
+		tokens = (m == Mode.TOKEN) ? new TokenIndex(this) : null;
+		
 		if (l != null) {
 			l.load(this);
 		}
@@ -49,86 +70,128 @@ public class Trie {
 	}
 	
 	public void clear() {
-		root.childNodes.clear();
+		root.clear();
+		
+		if (tokens != null) {
+			tokens.clear();
+		}
+		
+		registry.clear();
 	}
 
 	public void commitFact(final Fact f, final Change.Type ct) {		
+		commitFacts(Collections.singletonList(f), Collections.singletonList(ct));
+	}
+	
+	public void commitFacts(final List<Fact> fs, final List<Change.Type> cts) {
+		if (tokens != null) {
+			for (int i = 0; i < fs.size(); i++) {
+				if (cts.get(i) == Change.Type.DELETE) {
+					tokens.delete(fs.get(i));
+				}
+			}
+		}
+		
 		if (log != null) {
-			log.commitFact(f,  ct);
+			log.commitFacts(fs, cts);
+		}
+
+		for (int i = 0; i < fs.size(); i++) {
+			if (cts.get(i) == Change.Type.DELETE) {
+				registry.release(fs.get(i));
+			}
 		}
 	}
 	
 	public void deleteAll(final Fact t, final Context cx) {		
 		final List<Node> ns = new ArrayList<>();
 		ns.addAll(t.nodes);
-		ns.parallelStream().forEach((n) -> {
+		final Node[] ds = ns.parallelStream().filter((n) -> {
 			if (n.trie != this) {
 				throw new RuntimeException("Delete from wrong trie!");
 			}
 			
-			n.deleteFact(t, cx);
-		});
+			return n.deleteFact(t);
+		}).toArray(Node[]::new);
+		
+		if (ds.length > 0) {
+			cx.addChange(new Change.Delete(this, t, ds));
+		}
 	}
 
 	public Node find(final String key) {
 		return root.find(key);
 	}
 	
-	public Set<Fact> findAll(final String key, final int minMatch) {	
-		final Set<Node> nss = root.findEndNodes(key, minMatch);
-		final Set<Fact> res = new ConcurrentSkipListSet<>();
+	//Results are cached until the trie changes and shouldn't be modified
+	
+	public Set<Fact> findAll(final String key, final int minMatch) {
+		return findAll(key, minMatch, Cancellation.NONE);
+	}
+	
+	public Set<Fact> findAll(final String key, final int minMatch, final Cancellation c) {
+		return findAll(key, minMatch, () -> basicFindAll(key, minMatch, c));
+	}
+	
+	//Shares findAll's cache entries with searches that compute a miss on
+	//their own, compute has to return what findAll would
+	
+	public Set<Fact> findAll(final String key, final int minMatch, 
+			final Supplier<Set<Fact>> compute) {
+		return results.get(minMatch + ":" + key, root.version(), compute);
+	}
+	
+	public Set<Fact> findAllFacts(final String key) {
+		return results.get("=" + key.toLowerCase(), root.version(), () -> root.findAllFacts(key));
+	}
+	
+	//Adds t under key alone, the change is only recorded when key is t's
+	//own key since committing it logs the whole fact
+	
+	public Node insert(final CharSequence key, final Fact t, final Context cx) {
+		final Node n = insertPath(key);
 		
-		if (nss.isEmpty()) {
-			return res;
+		if (n.insertFact(t) && n.key.compareToIgnoreCase(Key.strip(t.key)) == 0) {
+			cx.addChange(new Change.Insert(this, t, new Node[] {n}));
 		}
 		
-		nss
-			.parallelStream()
-			.forEach((n) -> n.updateScore(key, nss));	
-		
-		nss
-			.parallelStream()
-			.sorted(Node::compareScoreTo)
-			.findFirst()
-			.get()
-			.getAllFacts(res);
-	
-		return res;
+		return n;
 	}
+	
+	//Node for key, created along with any missing nodes on the way
+	
+	private Node insertPath(final CharSequence key) {				
+		Node n = root;
+		int i = 0;
 		
-	public Node insert(final String key, final Fact t, final Context cx) {				
-		Node n;
-		Node pn;
-		int i;
-		char c;
-		
-		final StringBuilder nkbuf = new StringBuilder();
-		
-		for (n = root, pn = n, i = 0; 
-			 i < key.length() && n != null;) {
-			c = key.charAt(i);
-			pn = n;
-			n = n.getChild(c);
-			if (n != null) {
-				nkbuf.append(c);
-				i++;
+		while (i < key.length()) {
+			final Node cn = n.childNodes.get(Character.toLowerCase(key.charAt(i)));
+			
+			if (cn == null) {
+				n.insertChild(key);
+				continue;
+			}
+			
+			int j = i + 1;
+			
+			while (j < cn.level && j < key.length() && 
+				Character.toLowerCase(cn.key.charAt(j)) == Character.toLowerCase(key.charAt(j))) {
+				j++;
+			}
+			
+			if (j < cn.level) {
+				final Node sn = n.splitChild(cn, j);
+				
+				if (sn == null) {
+					continue;
+				}
+				
+				n = sn;
+			} else {
+				n = cn;
 			}
-		}
-		
-		if (n == null) {
-			for (n = pn;
-		 	 	 i < key.length() && n != null;) {
-				c = key.charAt(i);
-				nkbuf.append(c);
-				pn = n;
-				n = new Node(this, pn, nkbuf.toString()); 
-				pn.insertChild(c, n);
-				i++;
-			}			
-		}
 			
-		if (n != null) {
-			n.insertFact(t, cx);
+			i = j;
 		}
 		
 		return n;
@@ -185,20 +248,82 @@ public class Trie {
 		return basicInsertAll(t, cx);
 	}
 
+	//Best k completions of prefix by fact count, k is capped at 
+	//Node.SUGGEST_SIZE
+	
+	public List<Node> suggest(final String prefix, final int k) {
+		final Node n = find(prefix);
+		
+		if (n == null) {
+			return new ArrayList<>();
+		}
+		
+		final List<Node> res = n.suggest();
+		return res.subList(0, Math.min(k, res.size()));
+	}
+	
 	private final Log log;
+	private static final ThreadLocal<Key.Splitter> SPLITTER = ThreadLocal.withInitial(Key.Splitter::new);
 	
+	private Set<Fact> basicFindAll(final String key, final int minMatch, final Cancellation c) {	
+		if (tokens != null) {
+			return tokens.findAll(key, minMatch);
+		}
+		
+		final Set<Node> nss = root.findEndNodes(key, minMatch, c);
+		final Set<Fact> res = new ConcurrentSkipListSet<>();
+		
+		if (nss.isEmpty()) {
+			return res;
+		}
+		
+		Node.updateScores(new Key.Signature(key), nss, c);
+		
+		final Node n = nss
+			.parallelStream()
+			.sorted(Node::compareScoreTo)
+			.findFirst()
+			.get();
+		
+		return registry.get(n.getAllIds(new BitSet(), c), res);
+	}
+
+	//Records a single change for all nodes t is added to
+
 	private Node basicInsertAll(final Fact t, final Context cx) {
+		final List<Node> ns = new ArrayList<>();
+		
 		if (!t.createdAt.equals(Albaum.nullTime)) {
-			basicInsertAll(String.format("#at %s", cx.format(t.createdAt)), t, cx);
+			basicInsertAll(String.format("#at %s", cx.format(t.createdAt)), t, ns);
 		}
 
-		return basicInsertAll(t.key, t, cx);
+		final Node res = basicInsertAll(t.key, t, ns);
+		
+		if (!ns.isEmpty()) {
+			cx.addChange(new Change.Insert(this, t, ns.toArray(new Node[ns.size()])));
+		}
+		
+		return res;
 	}
 
-	private Node basicInsertAll(final String k, final Fact t, final Context cx) {
-		final Set<String> ks = Key.split(k);
-		ks.parallelStream().forEach((kk) -> insert(kk, t, cx));
-		return insert(k, t, cx);
+	private Node basicInsertAll(final String k, final Fact t, final List<Node> ns) {
+		if (tokens != null) {
+			tokens.insert(k, t);
+		} else {
+			SPLITTER.get().split(k, false, (kk) -> insertFact(kk, t, ns));
+		}
+		
+		return insertFact(k, t, ns);
+	}
+	
+	private Node insertFact(final CharSequence key, final Fact t, final List<Node> ns) {
+		final Node n = insertPath(key);
+		
+		if (n.insertFact(t)) {
+			ns.add(n);
+		}
+		
+		return n;
 	}
 
 	public static class Tests {		
@@ -225,7 +350,7 @@ public class Trie {
 			cx.commit();
 			cx.rollback();
 			
-			assertFalse(s.find("abc").facts.contains(f));
+			assertFalse(s.find("abc").facts().contains(f));
 			assertTrue(cx.changes.isEmpty());
 		}
 
@@ -250,6 +375,16 @@ public class Trie {
 			assertEquals(n2, s.find("abc").extend());
 			assertEquals(s.find("ab"), s.find("ab").extend());
 			assertEquals(s.find("abd"), s.find("abd").extend());
+			
+			Fact abcd = new Fact("abcdef");
+			s.insertAll(abcd, cx);
+			cx.commit();
+			assertEquals(s.find("abc"), s.find("abc").extend());
+			assertEquals("abc", s.find("ab").getFirstFact().key);
+			
+			s.deleteAll(s.find("abc").getFirstFact(), cx);
+			cx.commit();
+			assertEquals(abcd, s.find("abc").getFirstFact());
 		}
 		
 		@SuppressWarnings("unused")
@@ -301,6 +436,24 @@ public class Trie {
 			assertTrue(res.contains(def_ghi));
 		}
 
+		@Test
+		public void testFindAllCache() {
+			Context cx = new Context();
+			Trie t = new Trie(null);
+			t.insertAll(new Fact("abc def"), cx);
+			cx.commit();
+			
+			Set<Fact> res = t.findAll("abc", 2);
+			assertTrue(res == t.findAll("abc", 2));
+			assertEquals(1, t.results.hits());
+			
+			t.insertAll(new Fact("abc ghi"), cx);
+			cx.commit();
+			assertEquals(2, t.findAll("abc", 2).size());
+			assertEquals(2, t.findAllFacts("ABC ").size());
+			assertEquals(1, t.results.hits());
+		}
+		
 		@Test
 		public void testGetAll() {
 			Context cx = new Context();
@@ -324,6 +477,33 @@ public class Trie {
 			assertEquals(0, res.size());
 		}
 
+		@Test
+		public void testGetAllCount() {
+			Context cx = new Context();
+			Trie s = new Trie(null);
+			Fact abc = new Fact("abc def ghi");
+			s.insertAll(abc, cx);
+			cx.commit();
+			Node n = s.find("abc");
+			assertEquals(1, n.getAllCount());
+			
+			Fact abd = new Fact("abd");
+			s.insertAll(abd, cx);
+			s.insertAll(new Fact("abc jkl"), cx);
+			cx.commit();
+			assertEquals(2, n.getAllCount());
+			assertEquals(3, s.find("ab").getAllCount());
+			
+			s.deleteAll(abc, cx);
+			cx.commit();
+			assertEquals(1, n.getAllCount());
+			assertEquals(2, s.find("ab").getAllFacts().size());
+			assertTrue(s.find("ab").getAllFacts().contains(abd));
+			
+			s.clear();
+			assertEquals(0, s.root.getAllCount());
+		}
+		
 		@Test
 		public void testGetAllFacts() {
 			Context cx = new Context();
@@ -354,8 +534,8 @@ public class Trie {
 			assertEquals(n, s.find("abc def ghi"));
 			
 			cx.commit();
-			assertTrue(s.find("def ghi").facts.contains(f));			
-			assertTrue(s.find("abc def ghi").facts.contains(f));			
+			assertTrue(s.find("def ghi").facts().contains(f));			
+			assertTrue(s.find("abc def ghi").facts().contains(f));			
 
 			assertEquals(null, s.find("bc def ghi"));		
 		}
@@ -386,6 +566,98 @@ public class Trie {
 			assertEquals("AbC", s.find("abc").key);
 		}
 		
+		//Number of nodes the trie would have without path compression 
+		
+		private static int levels(final Node n) {
+			int res = 1;
+			
+			for (final Node cn: n.childNodes.values()) {
+				res += cn.level - n.level - 1 + levels(cn);
+			}
+			
+			return res;
+		}
+		
+		@Test
+		public void testRadix() {
+			Context cx = new Context();
+			Trie s = new Trie(null);
+			Set<Fact> fs = new TreeSet<>();
+			
+			for (int i = 0; i < 1000; i++) {
+				Fact f = new Fact(String.format("abc def %d ghi jkl mnopqrs tuvwxyz", i));
+				fs.add(f);
+			}
+
+			fs.parallelStream().forEach((f) -> s.insertAll(f, cx));
+			cx.commit();
+			
+			for (Fact f: fs) {
+				assertTrue(s.find(f.key).facts().contains(f));
+			}
+			
+			assertTrue(s.root.count() * 10 < levels(s.root));
+			assertEquals(1000, s.find("abc de").getAllFacts().size());
+			assertEquals("abc de", s.find("ABC DE").key);
+			assertEquals(s.find("abc de"), s.find("abc d").getChild('e'));
+			assertEquals(s.find("abc d"), s.find("abc de").up());
+			assertEquals(null, s.find("abc dx"));
+		}
+
+		@Test
+		public void testScores() {
+			Context cx = new Context();
+			Trie s = new Trie(null);
+			
+			for (String k: new String[] {"abc def", "abc ghi", "def ghi", "abc def ghi", "jkl"}) {
+				s.insertAll(new Fact(k), cx);
+			}
+			
+			cx.commit();
+			List<Node> ns = Arrays.asList(s.find("abc"), s.find("abc d"), s.find("def"), s.find("jkl"));
+			Node.updateScores(new Key.Signature("xyz"), ns);
+			
+			for (Node n: ns) {
+				int res = 0;
+				
+				for (Node nn: ns) {
+					if (nn != n) {
+						Set<Fact> fs = n.getAllFacts();
+						fs.retainAll(nn.getAllFacts());
+						res += fs.size();
+					}
+				}
+				
+				assertEquals(res * (1 + Key.score(n.key, "xyz")), n.score());
+			}
+		}
+
+		@Test
+		public void testSuggest() {
+			Context cx = new Context();
+			Trie s = new Trie(null);
+			
+			for (int i = 0; i < 20; i++) {
+				s.insertAll(new Fact(String.format("abc %d def", i)), cx);
+			}
+			
+			cx.commit();
+			List<Node> ns = s.suggest("abc", 100);
+			assertEquals(Node.SUGGEST_SIZE, ns.size());
+			assertEquals("abc ", ns.get(0).key);
+			
+			for (int i = 1; i < ns.size(); i++) {
+				assertTrue(ns.get(i - 1).factCount() >= ns.get(i).factCount());
+			}
+			
+			s.insertAll(new Fact("abc 3 ghi"), cx);
+			s.insertAll(new Fact("abc 3 jkl"), cx);
+			cx.commit();
+			assertEquals("abc 3 ", s.suggest("abc 3", 1).get(0).key);
+			assertEquals(3, s.suggest("abc 3", 1).get(0).factCount());
+			assertTrue(s.suggest("xyz", 1).isEmpty());
+		}
+
 		@Test
 		public void testRollbackInsert() {
 			Context cx = new Context();
@@ -395,8 +667,50 @@ public class Trie {
 			s.insertAll(f, cx);
 			cx.rollback();
 			
-			assertFalse(s.find("abc").facts.contains(f));
+			assertFalse(s.find("abc").facts().contains(f));
+			assertTrue(cx.changes.isEmpty());
+		}
+
+		@Test
+		public void testChanges() {
+			Context cx = new Context();
+			Trie s = new Trie(null);	
+			Fact f = new Fact("abc def ghi");
+			
+			s.insertAll(f, cx);
+			assertEquals(1, cx.changes.size());
+			assertEquals(f.nodes.size(), cx.changes.peek().nodes.length);
+			cx.rollback();
+			
+			assertTrue(f.nodes.isEmpty());
+			assertTrue(s.findAll("def", 1).isEmpty());
+		}
+
+		@Test
+		public void testExactFact() {
+			Context cx = new Context();
+			Trie s = new Trie(null);
+			Fact f = new Fact("Abc def");
+			s.insertAll(f, cx);
+			s.insertAll(new Fact("abc"), cx);
+			
+			assertEquals(f, s.find("abc def").getExactFact());
+			assertEquals("abc", s.find("ABC").getExactFact().key);
+			assertEquals(null, s.find("abc ").getExactFact());
+			s.insertAll(new Fact("abc d"), cx);
+			assertEquals("abc d", s.find("abc d").getExactFact().key);
+		}
+
+		@Test
+		public void testInsertChange() {
+			Context cx = new Context();
+			Trie s = new Trie(null);	
+			Fact f = new Fact("abc def");
+			
+			s.insert("abc", f, cx);
 			assertTrue(cx.changes.isEmpty());
+			s.insert(f.key, f, cx);
+			assertEquals(1, cx.changes.size());
 		}
 
 		@Test
@@ -410,7 +724,7 @@ public class Trie {
 			s.deleteAll(f, cx);
 			cx.rollback();
 			
-			assertTrue(s.find("abc").facts.contains(f));
+			assertTrue(s.find("abc").facts().contains(f));
 			assertTrue(cx.changes.isEmpty());
 		}		
 	}	